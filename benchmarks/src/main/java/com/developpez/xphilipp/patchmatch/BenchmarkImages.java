@@ -0,0 +1,44 @@
+package com.developpez.xphilipp.patchmatch;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Generated (reproducible) images and masks for the benchmarks
+ * 
+ */
+final class BenchmarkImages {
+
+	private BenchmarkImages() {
+	}
+	
+	// a textured RGB image : gradients, checkerboard and noise
+	static BufferedImage image(int W, int H) {
+		BufferedImage image = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(W*31+H);
+		for(int y=0;y<H;y++) {
+			for(int x=0;x<W;x++) {
+				int checker = ((x/8+y/8)%2)*60;
+				int r = (x*3+checker+random.nextInt(20)) & 0xFF;
+				int g = (y*2+random.nextInt(30)) & 0xFF;
+				int b = ((x^y)+random.nextInt(10)) & 0xFF;
+				image.setRGB(x, y, (r<<16)|(g<<8)|b);
+			}
+		}
+		return image;
+	}
+	
+	// a centered rectangular hole covering the given ratio of the image
+	static boolean[][] mask(int W, int H, double holeRatio) {
+		boolean[][] mask = new boolean[W][H];
+		int w = (int)Math.round(W*Math.sqrt(holeRatio)), h = (int)Math.round(H*Math.sqrt(holeRatio));
+		for(int y=(H-h)/2;y<(H+h)/2;y++)
+			for(int x=(W-w)/2;x<(W+w)/2;x++)
+				mask[x][y]=true;
+		return mask;
+	}
+	
+	static MaskedImage maskedImage(int W, int H, double holeRatio) {
+		return new MaskedImage(image(W, H), mask(W, H, holeRatio));
+	}
+}
@@ -0,0 +1,65 @@
+package com.developpez.xphilipp.patchmatch;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MaskedImage.distance() between random patches, with the scalar and the SIMD kernel
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(value=1, jvmArgsAppend={"--add-modules", "jdk.incubator.vector"})
+public class DistanceBenchmark {
+
+	static final int PAIRS = 1024;
+	
+	@Param({"2", "4", "6"})
+	int radius;
+	
+	@Param({"0.02", "0.2"})
+	double hole;
+	
+	// the kernel is chosen when DistanceKernel is loaded : each fork uses one of them
+	@Param({"false", "true"})
+	String vector;
+	
+	MaskedImage source, target;
+	int[] coords;
+	
+	@Setup
+	public void setup() {
+		System.setProperty("patchmatch.vector", vector);
+		source = BenchmarkImages.maskedImage(512, 512, hole);
+		target = BenchmarkImages.maskedImage(512, 512, 0);
+		Random random = new Random(0);
+		coords = new int[4*PAIRS];
+		for(int i=0;i<coords.length;i++)
+			coords[i] = random.nextInt(512);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(PAIRS)
+	public long distance() {
+		long sum=0;
+		for(int i=0;i<coords.length;i+=4)
+			sum += MaskedImage.distance(source, coords[i], coords[i+1], target, coords[i+2], coords[i+3], radius);
+		return sum;
+	}
+}
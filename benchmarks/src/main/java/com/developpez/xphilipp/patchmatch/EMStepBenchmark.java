@@ -0,0 +1,70 @@
+package com.developpez.xphilipp.patchmatch;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Inpaint.EM_Step() : vote of a target image from a minimized NNF, at the same scale and upscaled
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(value=1, jvmArgsAppend={"--add-modules", "jdk.incubator.vector"})
+public class EMStepBenchmark {
+
+	@Param({"256", "1024"})
+	int size;
+	
+	@Param({"0.02", "0.2"})
+	double hole;
+	
+	@Param({"2"})
+	int radius;
+	
+	@Param({"false", "true"})
+	boolean integerVotes;
+	
+	Inpaint inpaint;
+	MaskedImage source, target, sourceUpscaled, targetUpscaled;
+	NNF nnf;
+	
+	@Setup
+	public void setup() {
+		int W=size, H=size*3/4;
+		inpaint = new Inpaint();
+		inpaint.setIntegerVotes(integerVotes);
+		source = BenchmarkImages.maskedImage(W, H, hole);
+		target = BenchmarkImages.maskedImage(W, H, 0);
+		sourceUpscaled = BenchmarkImages.maskedImage(2*W, 2*H, hole);
+		targetUpscaled = new MaskedImage(2*W, 2*H);
+		nnf = new NNF(target, source, radius);
+		nnf.randomize();
+		nnf.minimize(2);
+	}
+	
+	@Benchmark
+	public MaskedImage emStep() {
+		inpaint.EM_Step(source, target, nnf, false, null);
+		return target;
+	}
+	
+	@Benchmark
+	public MaskedImage emStepUpscaled() {
+		inpaint.EM_Step(sourceUpscaled, targetUpscaled, nnf, true, null);
+		return targetUpscaled;
+	}
+}
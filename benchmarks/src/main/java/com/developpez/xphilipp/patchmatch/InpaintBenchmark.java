@@ -0,0 +1,61 @@
+package com.developpez.xphilipp.patchmatch;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end Inpaint.inpaint()
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=2)
+@Measurement(iterations=3)
+@Fork(value=1, jvmArgsAppend={"--add-modules", "jdk.incubator.vector"})
+public class InpaintBenchmark {
+
+	@Param({"256", "1024"})
+	int size;
+	
+	@Param({"0.02", "0.1"})
+	double hole;
+	
+	@Param({"2"})
+	int radius;
+	
+	@Param({"1"})
+	int threads;
+	
+	@Param({"false", "true"})
+	boolean integerVotes;
+	
+	BufferedImage image;
+	boolean[][] mask;
+	
+	@Setup
+	public void setup() {
+		image = BenchmarkImages.image(size, size*3/4);
+		mask = BenchmarkImages.mask(size, size*3/4, hole);
+	}
+	
+	@Benchmark
+	public BufferedImage inpaint() {
+		Inpaint inpaint = new Inpaint();
+		inpaint.setThreads(threads);
+		inpaint.setIntegerVotes(integerVotes);
+		return inpaint.inpaint(image, mask, radius);
+	}
+}
@@ -0,0 +1,67 @@
+package com.developpez.xphilipp.patchmatch;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Accuracy of the integer votes (Inpaint.setIntegerVotes) against the double votes :
+ * difference of the channels for a single EM step (same NNF) and for the whole inpainting
+ * 
+ * java -cp benchmarks/target/benchmarks.jar com.developpez.xphilipp.patchmatch.IntegerVotesAccuracy
+ * 
+ */
+public class IntegerVotesAccuracy {
+
+	public static void main(String[] args) {
+		int radius = 2;
+		for(int size : new int[] {256, 512, 1024}) {
+			int W=size, H=size*3/4;
+			for(double hole : new double[] {0.02, 0.1}) {
+				// single EM step, at the same scale and upscaled
+				MaskedImage source = BenchmarkImages.maskedImage(W, H, hole);
+				MaskedImage target = BenchmarkImages.maskedImage(W, H, 0);
+				NNF nnf = new NNF(target, source, radius);
+				nnf.randomize();
+				nnf.minimize(2);
+				MaskedImage sourceUpscaled = BenchmarkImages.maskedImage(2*W, 2*H, hole);
+				report("em step "+W+"x"+H+" hole="+hole, emStep(source, target, nnf, false, false), emStep(source, target, nnf, false, true));
+				report("em step upscaled "+W+"x"+H+" hole="+hole, emStep(sourceUpscaled, target, nnf, true, false), emStep(sourceUpscaled, target, nnf, true, true));
+				
+				// whole inpainting
+				BufferedImage image = BenchmarkImages.image(W, H);
+				boolean[][] mask = BenchmarkImages.mask(W, H, hole);
+				report("inpaint "+W+"x"+H+" hole="+hole, inpaint(image, mask, radius, false), inpaint(image, mask, radius, true));
+			}
+		}
+	}
+	
+	private static int[] emStep(MaskedImage source, MaskedImage target, NNF nnf, boolean upscaled, boolean integerVotes) {
+		Inpaint inpaint = new Inpaint();
+		inpaint.setIntegerVotes(integerVotes);
+		MaskedImage result = upscaled ? new MaskedImage(2*target.W, 2*target.H) : target.copy();
+		inpaint.EM_Step(source, result, nnf, upscaled, null);
+		return result.pixels;
+	}
+	
+	private static int[] inpaint(BufferedImage image, boolean[][] mask, int radius, boolean integerVotes) {
+		Inpaint inpaint = new Inpaint();
+		inpaint.setIntegerVotes(integerVotes);
+		BufferedImage result = inpaint.inpaint(image, mask, radius);
+		return result.getRGB(0, 0, result.getWidth(), result.getHeight(), null, 0, result.getWidth());
+	}
+	
+	// differences of the channels : pixels which differ, mean and max absolute difference
+	private static void report(String name, int[] expected, int[] actual) {
+		long differing=0, sum=0; int max=0;
+		for(int i=0;i<expected.length;i++) {
+			if ((expected[i]&0xFFFFFF)==(actual[i]&0xFFFFFF)) continue;
+			differing++;
+			for(int shift=0;shift<24;shift+=8) {
+				int d = Math.abs(((expected[i]>>shift)&0xFF)-((actual[i]>>shift)&0xFF));
+				sum+=d;
+				max=Math.max(max, d);
+			}
+		}
+		System.out.printf("%-36s differing pixels %6.2f%%  mean channel error %.4f  max %d%n",
+				name, 100.0*differing/expected.length, (double)sum/(3*expected.length), max);
+	}
+}
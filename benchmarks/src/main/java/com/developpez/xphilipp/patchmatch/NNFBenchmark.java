@@ -0,0 +1,59 @@
+package com.developpez.xphilipp.patchmatch;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One pass of NNF.minimize() from a random field, target = unmasked copy of the source
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3)
+@Measurement(iterations=5)
+@Fork(value=1, jvmArgsAppend={"--add-modules", "jdk.incubator.vector"})
+public class NNFBenchmark {
+
+	@Param({"256", "1024"})
+	int size;
+	
+	@Param({"0.02", "0.2"})
+	double hole;
+	
+	@Param({"2"})
+	int radius;
+	
+	MaskedImage source, target;
+	NNF nnf;
+	
+	@Setup
+	public void setup() {
+		source = BenchmarkImages.maskedImage(size, size*3/4, hole);
+		target = BenchmarkImages.maskedImage(size, size*3/4, 0);
+	}
+	
+	@Setup(Level.Invocation)
+	public void randomize() {
+		nnf = new NNF(target, source, radius);
+		nnf.randomize();
+	}
+	
+	@Benchmark
+	public NNF minimize() {
+		nnf.minimize(1);
+		return nnf;
+	}
+}
@@ -0,0 +1,71 @@
+package com.developpez.xphilipp.patchmatch;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MaskedImage.downsample() and MaskedImage.upscale() (pyramid construction and EM upscaling)
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(value=1, jvmArgsAppend={"--add-modules", "jdk.incubator.vector"})
+public class PyramidBenchmark {
+
+	@Param({"512", "2048"})
+	int size;
+	
+	@Param({"0.02", "0.2"})
+	double hole;
+	
+	MaskedImage image, upscaled;
+	ForkJoinPool pool;
+	
+	@Setup
+	public void setup() {
+		image = BenchmarkImages.maskedImage(size, size*3/4, hole);
+		upscaled = new MaskedImage(2*image.W, 2*image.H);
+		pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	}
+	
+	@TearDown
+	public void tearDown() {
+		pool.shutdown();
+	}
+	
+	@Benchmark
+	public MaskedImage downsample() {
+		return image.downsample();
+	}
+	
+	@Benchmark
+	public MaskedImage downsampleParallel() {
+		return image.downsample(pool);
+	}
+	
+	@Benchmark
+	public MaskedImage upscale() {
+		return image.upscale(2*image.W, 2*image.H);
+	}
+	
+	@Benchmark
+	public MaskedImage upscaleInto() {
+		return image.upscale(2*image.W, 2*image.H, upscaled);
+	}
+}
@@ -25,6 +25,9 @@ void draw() {
   if(patchMatch.available()){
     image(patchMatch.getResultPImage(),0,0,width,height);
   }
+  else if(patchMatch.previewAvailable()){
+    image(patchMatch.getPreviewPImage(),0,0,width,height);
+  }
   else{
     image(image,0,0,width,height);
   }
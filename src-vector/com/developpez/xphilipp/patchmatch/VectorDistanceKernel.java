@@ -0,0 +1,59 @@
+package com.developpez.xphilipp.patchmatch;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD version of DistanceKernel, using the JDK Vector API
+ * 
+ * Must be compiled and run with "--add-modules jdk.incubator.vector". 
+ * Processes the full steps of the preferred species (8 pixels with AVX2, 16 with AVX-512) without lane masks,
+ * accumulating in the lanes and reducing once per row. The rows shorter than a step and the tail of the rows
+ * use the scalar kernel. Smaller species are emulated or too short for the patch rows : the constructor
+ * refuses them and DistanceKernel falls back to the scalar kernel.
+ * The per-pixel SSD fits in an int and the sums are exact, so the results are the same as the scalar kernel.
+ *
+ */
+class VectorDistanceKernel extends DistanceKernel {
+
+	private static final VectorSpecies<Integer> INT = IntVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Byte> BYTE = VectorSpecies.of(byte.class, VectorShape.forBitSize(INT.length()*Byte.SIZE));
+	
+	VectorDistanceKernel() {
+		if (INT.vectorBitSize()<256) throw new UnsupportedOperationException("no 256-bit vectors : "+INT);
+	}
+	
+	@Override
+	long row(int[] spixels, byte[] smask, int is, int[] tpixels, byte[] tmask, int it, int n) {
+		int steps = n/INT.length(), k = steps*INT.length();
+		if (steps==0) return super.row(spixels, smask, is, tpixels, tmask, it, n);
+		
+		// a lane sums at most n/INT.length() pixels of at most SSDMAX : no overflow for any patch size 
+		IntVector sum = IntVector.zero(INT);
+		for(int j=0;j<k;j+=INT.length()) {
+			// value distance (weight for R/G/B components = 3/6/1)
+			IntVector ps = IntVector.fromArray(INT, spixels, is+j);
+			IntVector pt = IntVector.fromArray(INT, tpixels, it+j);
+			IntVector dr = channel(ps, 16).sub(channel(pt, 16));
+			IntVector dg = channel(ps, 8).sub(channel(pt, 8));
+			IntVector db = channel(ps, 0).sub(channel(pt, 0));
+			IntVector ssd = dr.mul(dr).mul(3).add(dg.mul(dg).mul(6)).add(db.mul(db));
+			
+			// cannot use masked pixels as a valid source of information
+			ByteVector masked = ByteVector.fromArray(BYTE, smask, is+j).or(ByteVector.fromArray(BYTE, tmask, it+j));
+			VectorMask<Integer> invalid = ((IntVector) masked.castShape(INT, 0)).compare(VectorOperators.NE, 0);
+			sum = sum.add(ssd.blend(SSDMAX, invalid));
+		}
+		long distance = sum.reduceLanesToLong(VectorOperators.ADD);
+		if (k<n) distance += super.row(spixels, smask, is+k, tpixels, tmask, it+k, n-k);
+		return distance;
+	}
+	
+	private static IntVector channel(IntVector rgb, int shift) {
+		return rgb.lanewise(VectorOperators.LSHR, shift).and(0xFF);
+	}
+}
@@ -27,7 +27,10 @@ package com.davidchatting.patchmatch;
  * @version     ##library.prettyVersion## (##library.version##)
  */
 
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.CancellationException;
 
 import processing.core.*;
 
@@ -38,75 +41,258 @@ public class PatchMatch extends Thread {
 	
 	private PApplet parent=null;
 	
-	private BufferedImage result=null;
-	private boolean running=false;
+	private volatile boolean running=false;
 	
-	private BufferedImage input=null;
-	private boolean[][] mask=null;
-	private int radius=2;
+	// guards pending, current and latest
+	private final Object lock=new Object();
+	private Job pending=null;
+	private Job current=null;
+	private Job latest=null;
+	
+	// shared by the jobs (they run one at a time)
+	private final Inpaint inpaint=new Inpaint();
+	
+	// guarded by lock : settings of the inpaint, applied when the next job starts
+	private boolean incremental=false;
+	private PyramidCache pyramidCache=null;
+	
+	/**
+	 * An inpainting job, returned by patch().
+	 * A job is cancelled when a new one is submitted. Until it is done, getPreview() returns
+	 * the result of the coarser levels, upscaled to the size of the input.
+	 */
+	public class Job {
+		private final BufferedImage input;
+		private final boolean[][] mask;
+		private final int radius;
+		
+		private volatile boolean cancelled=false;
+		private volatile boolean done=false;
+		private volatile BufferedImage result=null;
+		private volatile BufferedImage preview=null;
+		private volatile RuntimeException error=null;
+		
+		private Job(BufferedImage i,boolean[][] m,int r){
+			input=i;
+			mask=m;
+			radius=r;
+		}
+		
+		private void run(){
+			inpaint.setListener(new InpaintListener() {
+				@Override
+				public void levelCompleted(int level, long nanos, int emIterations, int nnfPasses, MaskedImage target) {
+					if(level>1 && !cancelled){
+						preview=getScaledImage(target.getBufferedImage(),input.getWidth(),input.getHeight());
+					}
+				}
+			});
+			try{
+				if(!cancelled){
+					result=inpaint.inpaint(input,mask,radius);
+					preview=result;
+				}
+			}
+			catch(CancellationException e){}
+			catch(RuntimeException e){
+				error=e;
+			}
+			finally{
+				synchronized(this){
+					done=true;
+					notifyAll();
+				}
+			}
+		}
+		
+		/**
+		 * stop the job (between two NNF passes or EM iterations)
+		 */
+		public void cancel(){
+			cancelled=true;
+			synchronized(lock){
+				if(current==this) inpaint.cancel();
+			}
+		}
+		
+		public boolean isCancelled(){
+			return(cancelled);
+		}
+		
+		public boolean isDone(){
+			return(done);
+		}
+		
+		/**
+		 * wait for the end of the job, and return its result (null if it has been cancelled)
+		 */
+		public synchronized BufferedImage waitFor() throws InterruptedException {
+			while(!done) wait();
+			if(error!=null) throw error;
+			return(result);
+		}
+		
+		public BufferedImage getResultBufferedImage(){
+			return(result);
+		}
+		
+		public PImage getResultPImage(){
+			return(getPImage(result));
+		}
+		
+		public BufferedImage getPreviewBufferedImage(){
+			return(preview);
+		}
+		
+		public PImage getPreviewPImage(){
+			return(getPImage(preview));
+		}
+	}
 	
 	public PatchMatch(PApplet p){
 		super();
 		parent=p;
+		setDaemon(true);
 		start();
 	}
 	
 	public void start(){
-        super.start();
-        running=true;
-    }
+		running=true;
+		super.start();
+	}
 	
 	public void run(){
 		while(running){
-			if(result==null && input!=null && mask!=null){
-				result=new Inpaint().inpaint(input,mask,radius);
+			Job job=null;
+			synchronized(lock){
+				while(running && pending==null){
+					try { lock.wait(); }
+					catch (InterruptedException e) {}
+				}
+				job=pending;
+				pending=null;
+				current=job;
+				if(job!=null){
+					// a cancel() of the previous job may have come after its end
+					inpaint.clearCancel();
+					inpaint.setIncremental(incremental);
+					inpaint.setPyramidCache(pyramidCache);
+				}
 			}
-			else{
-				try { sleep(100); }
-	            catch (Exception e) {}
+			if(job!=null){
+				job.run();
+				synchronized(lock){
+					current=null;
+				}
 			}
 		}
-    }
+	}
 	
 	public void quit(){
-		running=false;
-        interrupt();
-    }
+		synchronized(lock){
+			running=false;
+			if(pending!=null) pending.cancel();
+			if(current!=null) current.cancel();
+			lock.notifyAll();
+		}
+		interrupt();
+	}
 	
-	public void patch(PImage i,PImage m,int r){
-		patch(getBufferedImage(i),getBufferedImage(m),r);
+	/**
+	 * incremental mode (off by default) : when the same image is patched again with another mask, only
+	 * the neighborhood of the pixels whose mask changed is patched again, the rest of the previous result
+	 * is kept. The result then depends on the previous jobs, and the solution of each level of the
+	 * previous job stays in memory. Applies from the next job.
+	 */
+	public void setIncremental(boolean enabled){
+		synchronized(lock){
+			incremental=enabled;
+		}
 	}
 	
-	public void patch(PImage i,PShape m,int r){
-		patch(getBufferedImage(i),getBufferedImage(m,i.width,i.height),r);
+	/**
+	 * keep the pyramids of the images already patched, up to the given size in bytes (0 = none, the default) :
+	 * patching the same image again with another mask only rebuilds the part of the pyramid which changed.
+	 * A pyramid takes about 7 bytes per pixel of the image (about 80 MB for 12 megapixels). Applies from the next job.
+	 */
+	public void setPyramidCacheSize(long bytes){
+		if(bytes<0) throw new IllegalArgumentException("cache size must be >= 0 : "+bytes);
+		synchronized(lock){
+			pyramidCache=(bytes>0) ? new PyramidCache(bytes) : null;
+		}
+	}
+	
+	public Job patch(PImage i,PImage m,int r){
+		return(patch(getBufferedImage(i),getBufferedImage(m),r));
+	}
+	
+	public Job patch(PImage i,PShape m,int r){
+		return(patch(getBufferedImage(i),getBufferedImage(m,i.width,i.height),r));
 	}
 
-	public void patch(BufferedImage i,BufferedImage m,int r){
-		patch(i,get2dArray(m),r);
+	public Job patch(BufferedImage i,BufferedImage m,int r){
+		return(patch(i,get2dArray(m),r));
 	}
 	
-	public void patch(PImage i,boolean[][] m,int r){
-		patch(getBufferedImage(i),m,r);
+	public Job patch(PImage i,boolean[][] m,int r){
+		return(patch(getBufferedImage(i),m,r));
 	}
 	
-	public void patch(BufferedImage i,boolean[][] m,int r){
-		input=i;
-		mask=m;
-		this.radius=r;
-		
-		result=null;
+	/**
+	 * submit a new job, the previous (pending or running) one is cancelled
+	 */
+	public Job patch(BufferedImage i,boolean[][] m,int r){
+		Job job=new Job(i,m,r);
+		synchronized(lock){
+			if(pending!=null) pending.cancel();
+			if(current!=null) current.cancel();
+			pending=job;
+			latest=job;
+			lock.notifyAll();
+		}
+		return(job);
+	}
+	
+	private Job getLatestJob(){
+		synchronized(lock){
+			return(latest);
+		}
+	}
+	
+	public PImage getResultPImage() {
+	    return(getPImage(getResultBufferedImage()));
 	}
 	
-	public synchronized PImage getResultPImage() {
-	    return(getPImage(result));
+	public BufferedImage getResultBufferedImage() {
+		Job job=getLatestJob();
+	    return(job==null ? null : job.getResultBufferedImage());
 	}
 	
-	public synchronized BufferedImage getResultBufferedImage() {
-	    return(result);
+	public boolean available(){
+		return(getResultBufferedImage()!=null);
 	}
 	
-	public synchronized boolean available(){
-		return(result!=null);
+	public PImage getPreviewPImage() {
+	    return(getPImage(getPreviewBufferedImage()));
+	}
+	
+	public BufferedImage getPreviewBufferedImage() {
+		Job job=getLatestJob();
+	    return(job==null ? null : job.getPreviewBufferedImage());
+	}
+	
+	public boolean previewAvailable(){
+		return(getPreviewBufferedImage()!=null);
+	}
+	
+	// fast (bilinear) resize, for the previews
+	private static BufferedImage getScaledImage(BufferedImage i,int w,int h){
+		BufferedImage result=new BufferedImage(w,h,BufferedImage.TYPE_INT_RGB);
+		Graphics2D g=result.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(i,0,0,w,h,null);
+		g.dispose();
+		return(result);
 	}
 	
 	public boolean[][] get2dArray(BufferedImage i){
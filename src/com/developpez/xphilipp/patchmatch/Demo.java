@@ -73,7 +73,26 @@ public class Demo {
 				if (mask[x][y]) input.setRGB(x, y, 0xFFFF0000);	;
 	
 		display(input);
-		BufferedImage output = new Inpaint().inpaint(input, mask, 2);
+		Inpaint inpaint = new Inpaint();
+		inpaint.setListener(new InpaintListener() {
+			@Override
+			public void levelStarted(int level, int width, int height) {
+				System.out.print("\n*** Processing -  Zoom 1:"+(1<<level)+" *** EM loop :");
+			}
+			@Override
+			public void nnfPassCompleted(int level, int pass, long energy, long distances, int active, int improved) {
+				System.out.print(".");
+			}
+			@Override
+			public void emIterationCompleted(int level, int iteration, long nanos) {
+				System.out.print(" "+iteration);
+			}
+			@Override
+			public void levelCompleted(int level, long nanos, int emIterations, int nnfPasses, MaskedImage result) {
+				System.out.print(" ("+nanos/1000000+" ms)");
+			}
+		});
+		BufferedImage output = inpaint.inpaint(input, mask, 2);
 		display(output);
 		
 		System.out.println("\nDONE.");
@@ -0,0 +1,51 @@
+package com.developpez.xphilipp.patchmatch;
+
+/**
+ * Inner loop of MaskedImage.distance() : SSD distance between two rows of pixels
+ * 
+ * This is the scalar version. The SIMD version VectorDistanceKernel (see src-vector) is opt-in : set the
+ * system property "patchmatch.vector" to "true", with the JDK Vector API available (--add-modules jdk.incubator.vector)
+ * and 256-bit vectors or wider (AVX2).
+ * It only pays off for large patches (the rows of the default radius 2 are 5 pixels). Both return the exact same values.
+ *
+ */
+class DistanceKernel {
+
+	// the distance of a masked (or missing) pixel, the maximum SSD of two pixels
+	static final int SSDMAX = 10*255*255;
+	
+	// the kernel used by MaskedImage.distance()
+	static final DistanceKernel INSTANCE = load();
+	
+	private static DistanceKernel load() {
+		if (Boolean.parseBoolean(System.getProperty("patchmatch.vector", "false"))) {
+			try {
+				return (DistanceKernel) Class.forName("com.developpez.xphilipp.patchmatch.VectorDistanceKernel").getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException e) {
+				// not compiled in, or no 256-bit vectors
+			} catch (LinkageError e) {
+				// module jdk.incubator.vector not available
+			}
+		}
+		return new DistanceKernel();
+	}
+	
+	// sum of the SSD distances of the n pixels starting at index is (source) and it (target)
+	// a pixel which is masked in either image counts as SSDMAX
+	long row(int[] spixels, byte[] smask, int is, int[] tpixels, byte[] tmask, int it, int n) {
+		long distance=0;
+		for(int k=0;k<n;k++,is++,it++) {
+			// cannot use masked pixels as a valid source of information
+			if (smask[is]!=0 || tmask[it]!=0) {distance+=SSDMAX; continue;}
+			
+			// SSD distance between pixels (each value is in [0,255^2])
+			// value distance (weight for R/G/B components = 3/6/1)
+			int ps = spixels[is], pt = tpixels[it];
+			int dr = ((ps>>16)&0xFF) - ((pt>>16)&0xFF);
+			int dg = ((ps>>8)&0xFF) - ((pt>>8)&0xFF);
+			int db = (ps&0xFF) - (pt&0xFF);
+			distance += 3*dr*dr + 6*dg*dg + db*db;
+		}
+		return distance;
+	}
+}
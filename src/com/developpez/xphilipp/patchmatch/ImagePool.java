@@ -0,0 +1,63 @@
+package com.developpez.xphilipp.patchmatch;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Pool of working images, by size : the targets of the EM iterations are taken from the pool 
+ * and given back when they are replaced, instead of being allocated for each iteration
+ * 
+ */
+class ImagePool {
+
+	// maximum number of images kept for each size
+	static final int MAX_PER_SIZE = 4;
+	
+	// free images, by size (W<<32 | H)
+	private final HashMap<Long,ArrayDeque<MaskedImage>> buckets = new HashMap<Long,ArrayDeque<MaskedImage>>();
+	
+	// memory cap (in bytes) of the free images, memory size of the free images
+	private long maxSize;
+	private long size;
+	
+	ImagePool(long maxSize) {
+		this.maxSize = maxSize;
+	}
+	
+	// change the memory cap, the free images are dropped if they are above it
+	void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		if (size>maxSize) clear();
+	}
+	
+	// return an image of the given size : its pixels and mask are undefined
+	MaskedImage get(int width, int height) {
+		ArrayDeque<MaskedImage> bucket = buckets.get(((long)width<<32) | height);
+		MaskedImage image = (bucket==null) ? null : bucket.pollLast();
+		if (image==null) return new MaskedImage(width, height);
+		size -= image.getMemorySize();
+		return image;
+	}
+	
+	// give back an image which is not used anymore
+	void release(MaskedImage image) {
+		if (image==null || size+image.getMemorySize()>maxSize) return;
+		Long key = ((long)image.W<<32) | image.H;
+		ArrayDeque<MaskedImage> bucket = buckets.get(key);
+		if (bucket==null) buckets.put(key, bucket = new ArrayDeque<MaskedImage>());
+		if (bucket.size()>=MAX_PER_SIZE) return;
+		bucket.addLast(image);
+		size += image.getMemorySize();
+	}
+	
+	// remove all the free images
+	void clear() {
+		buckets.clear();
+		size = 0;
+	}
+	
+	// memory size (in bytes) of the free images
+	long getSize() {
+		return size;
+	}
+}
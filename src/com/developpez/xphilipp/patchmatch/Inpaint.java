@@ -1,9 +1,12 @@
 package com.developpez.xphilipp.patchmatch;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Inpaint using the PatchMatch Algorithm
@@ -29,90 +32,532 @@ public class Inpaint {
 	// Pyramid of downsampled initial images
 	List<MaskedImage> pyramid;
 	
+	// number of worker threads
+	int threads = 1;
+	
+	// worker pool (only when threads>1)
+	ForkJoinPool pool;
+	
+	// only process the neighborhood of the masked pixels
+	boolean regionOfInterest = false;
+	
+	// active set scheduling of the NNF passes
+	boolean activeSet = false;
+	
+	// vote with the fixed point similarity and integer histograms
+	boolean integerVotes = false;
+	
+	// seed of the random numbers of the NNFs
+	long seed = 0;
+	
+	// the links of the hole of each level start from the nearest patches found by a PatchIndex
+	boolean indexSeeding = false;
+	
+	// adaptive schedule (tolerance 0 = fixed schedule), bounds of the EM iterations and NNF passes of a level
+	double tolerance = 0;
+	int minEM = 1, maxEM = 4, minNNF = 1, maxNNF = 5;
+	
+	// time budget of an inpainting in nanoseconds (0 = none), end of the budget of the running inpainting
+	long timeBudget = 0;
+	long deadline;
+	
+	// progress and metrics (null = none)
+	InpaintListener listener;
+	
+	// pyramids reused from the previous inpaintings (null = none)
+	PyramidCache pyramidCache;
+	
+	// incremental mode : an inpainting of the same image starts from the solution of the previous one
+	boolean incremental = false;
+	
+	// video mode : an inpainting starts from the solution of the previous frame (see VideoInpaint)
+	boolean video = false;
+	
+	// maximum mean difference of the channels (at the smallest level) between two coherent frames
+	double coherence = 4;
+	
+	// video mode : the previous frame is reused, and it is coherent with this one (fewer iterations)
+	boolean warm, coherent;
+	
+	// solution of the previous inpainting (incremental and video modes) : pyramid, final target and NNF of each level
+	List<MaskedImage> previousPyramid;
+	MaskedImage[] previousTargets;
+	NNF[] previousNNFs;
+	int previousRadius;
+	
+	// bounding boxes of the changes since the previous inpainting, for each level (null = not reused)
+	Rectangle[] changes;
+	
+	// maximum size (in bytes) of the images and fields in use
+	long peakWorkingSet;
+	
+	// set by cancel(), checked between the NNF passes and the EM iterations, cleared by clearCancel()
+	// and at the end of inpaint()
+	volatile boolean cancelled;
+	
+	// scratch space of the EM steps, one per band of rows (kept for the next calls)
+	Votes[] votes = new Votes[0];
+	
+	// working images of the EM iterations (kept for the next calls, see setBufferPoolSize)
+	static final long DEFAULT_BUFFER_POOL_SIZE = 256L<<20;
+	final ImagePool buffers = new ImagePool(DEFAULT_BUFFER_POOL_SIZE);
+	
+	// out-of-core inpainting : the level 0 of the pyramid (null in the list) and the result are stored on disk
+	TiledImage tiledInput, tiledOutput;
+	Rectangle tiledBounds;
+	
+	// set the number of worker threads used by the NNF minimization and the EM steps
+	public void setThreads(int threads) {
+		if (threads<1) throw new IllegalArgumentException("threads must be >= 1 : "+threads);
+		this.threads = threads;
+	}
+	
+	// only run the NNF and EM steps in the (dilated) bounding box of the masked pixels,
+	// the rest of the image is copied through unchanged
+	public void setRegionOfInterest(boolean enabled) {
+		this.regionOfInterest = enabled;
+	}
+	
+	// only revisit the NNF links which improved during the previous pass (and their neighbors)
+	public void setActiveSet(boolean enabled) {
+		this.activeSet = enabled;
+	}
+	
+	// vote with 16-bit fixed point weights (MaskedImage.WSCALE) and integer sums instead of doubles :
+	// faster, the result may differ by one level on some pixels
+	public void setIntegerVotes(boolean enabled) {
+		this.integerVotes = enabled;
+	}
+	
+	// set the seed of the random search : the result only depends on the seed, not on the number of threads
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+	
+	// start the links of the hole of each level from the approximate nearest patches of the source (principal 
+	// components of the patches in a kd-tree) when they are better than the upscaled (or random) links
+	public void setIndexSeeding(boolean enabled) {
+		this.indexSeeding = enabled;
+	}
+	
+	// adaptive schedule : the NNF passes of an EM iteration stop when a pass improves the energy by less than
+	// this ratio, and the EM iterations of a level stop when an iteration changes the pixels of the region 
+	// by less than this ratio (mean change of the channels / 255). 0 = fixed schedule (the default)
+	public void setTolerance(double tolerance) {
+		if (tolerance<0) throw new IllegalArgumentException("tolerance must be >= 0 : "+tolerance);
+		this.tolerance = tolerance;
+	}
+	
+	// bounds of the schedule of a level : EM iterations (including the final upscaling one) and NNF passes 
+	// per EM iteration. The level L does min(2L,maxEM) EM iterations and min(L,maxNNF) NNF passes (at least the 
+	// minimums), the adaptive schedule stops between the minimums and these counts
+	public void setIterationBounds(int minEM, int maxEM, int minNNF, int maxNNF) {
+		if (minEM<1 || maxEM<minEM) throw new IllegalArgumentException("EM iterations must be 1 <= min <= max : "+minEM+", "+maxEM);
+		if (minNNF<1 || maxNNF<minNNF) throw new IllegalArgumentException("NNF passes must be 1 <= min <= max : "+minNNF+", "+maxNNF);
+		this.minEM = minEM;
+		this.maxEM = maxEM;
+		this.minNNF = minNNF;
+		this.maxNNF = maxNNF;
+	}
+	
+	// time budget of an inpainting (0 = none) : once it is spent, the NNF passes stop and the remaining
+	// levels only do a single NNF pass and the final EM iteration
+	public void setTimeBudget(long millis) {
+		if (millis<0) throw new IllegalArgumentException("time budget must be >= 0 : "+millis);
+		this.timeBudget = millis*1000000;
+	}
+	
+	// set the listener notified of the progress and metrics (null = none)
+	public void setListener(InpaintListener listener) {
+		this.listener = listener;
+	}
+	
+	// reuse the pyramids of the images already inpainted (with another mask) from the cache (null = none)
+	public void setPyramidCache(PyramidCache pyramidCache) {
+		this.pyramidCache = pyramidCache;
+	}
+	
+	// keep the solution of each inpainting : when the same image is inpainted again (with another mask),
+	// only the neighborhood of the pixels which changed is inpainted again, the rest is reused
+	public void setIncremental(boolean enabled) {
+		this.incremental = enabled;
+		if (!enabled) clearPrevious();
+	}
+	
+	// forget the solution of the previous inpainting
+	void clearPrevious() {
+		previousPyramid = null;
+		previousTargets = null;
+		previousNNFs = null;
+	}
+	
+	// stop the running inpaint() as soon as possible, or the next one if it has not started yet :
+	// it throws a CancellationException. The cancellation is cleared when the inpaint() ends
+	public void cancel() {
+		cancelled = true;
+		NNF nnf = nnf_TargetToSource;
+		if (nnf!=null) nnf.cancel();
+	}
+	
+	// memory cap (in bytes) of the working images kept from one EM iteration to the next, and from one call
+	// to the next (default 256 MB, 0 = none). They stay in memory as long as this Inpaint : lower the cap
+	// of long-lived instances (like the workers of InpaintService) if memory matters more than allocations
+	public void setBufferPoolSize(long bytes) {
+		if (bytes<0) throw new IllegalArgumentException("buffer pool size must be >= 0 : "+bytes);
+		buffers.setMaxSize(bytes);
+	}
+	
+	// forget a cancel() which has not stopped an inpaint() yet (called when a new job is handed to this Inpaint)
+	public void clearCancel() {
+		cancelled = false;
+	}
+	
 	public BufferedImage inpaint(BufferedImage input, boolean[][] mask, int radius) {
+		if (threads>1) pool = new ForkJoinPool(threads);
+		try {
+			return inpaint(new MaskedImage(input, mask), radius);
+		} finally {
+			if (pool!=null) pool.shutdown();
+			pool = null;
+			
+			// release the working data, only the scratch buffers are kept
+			initial = null;
+			pyramid = null;
+			nnf_TargetToSource = null;
+			changes = null;
+			cancelled = false;
+		}
+	}
+	
+	// inpaint an image stored on disk, the result is written in output (same size, no masked pixels).
+	// Only the full resolution level is kept on disk : it is read by the first downsampling and 
+	// by the last EM step, which builds and writes the result by strips of rows.
+	public void inpaint(TiledImage input, TiledImage output, int radius) {
+		if (output.W!=input.W || output.H!=input.H)
+			throw new IllegalArgumentException("output size "+output.W+"x"+output.H+" differs from input size "+input.W+"x"+input.H);
+		if (threads>1) pool = new ForkJoinPool(threads);
+		try {
+			long start = System.nanoTime();
+			deadline = (timeBudget>0) ? start+timeBudget : 0;
+			this.radius = radius;
+			this.tiledInput = input;
+			this.tiledOutput = output;
+			this.tiledBounds = input.getMaskedBounds();
+			
+			// build pyramid of downscaled images, the level 0 stays on disk
+			this.pyramid = new ArrayList<MaskedImage>();
+			this.pyramid.add(null);
+			if (input.W>radius && input.H>radius && tiledBounds!=null) {
+				MaskedImage source = input.downsample();
+				this.pyramid.add(source);
+				buildPyramid(source);
+			}
+			if (listener!=null) listener.pyramidBuilt(pyramid.size(), System.nanoTime()-start);
+			
+			if (pyramid.size()>1) {
+				solve();
+			} else {
+				// nothing to inpaint : copy the input
+				for(int y=0;y<input.H;y+=TiledImage.TILE) {
+					MaskedImage strip = input.readRegion(0, y, input.W, Math.min(TiledImage.TILE, input.H-y));
+					Arrays.fill(strip.mask, (byte)0);
+					output.writeRegion(strip, 0, y);
+				}
+			}
+			
+			if (listener!=null) listener.inpaintCompleted(System.nanoTime()-start, peakWorkingSet);
+		} finally {
+			if (pool!=null) pool.shutdown();
+			pool = null;
+			
+			pyramid = null;
+			nnf_TargetToSource = null;
+			tiledInput = null;
+			tiledOutput = null;
+			tiledBounds = null;
+			cancelled = false;
+		}
+	}
+	
+	private BufferedImage inpaint(MaskedImage initial, int radius) {
+		long start = System.nanoTime();
+		deadline = (timeBudget>0) ? start+timeBudget : 0;
+		
 		// initial image
-		this.initial = new MaskedImage(input, mask);
+		this.initial = initial;
 		
 		// patch radius
 		this.radius = radius;
 
-		// working copies
-		MaskedImage source = initial;
-
-		System.out.println("build pyramid of images...");
-		
 		// build pyramid of downscaled images
-		this.pyramid = new ArrayList<MaskedImage>();
-		this.pyramid.add(source);
+		if (pyramidCache!=null) {
+			this.pyramid = pyramidCache.getPyramid(initial, radius, pool);
+		} else {
+			this.pyramid = new ArrayList<MaskedImage>();
+			this.pyramid.add(initial);
+			buildPyramid(initial);
+		}
+		if (listener!=null) listener.pyramidBuilt(pyramid.size(), System.nanoTime()-start);
+		
+		MaskedImage target = solve();
+		BufferedImage result = target.getBufferedImage();
+		if (!incremental && !video) buffers.release(target);
+
+		if (listener!=null) listener.inpaintCompleted(System.nanoTime()-start, peakWorkingSet);
+		return result;
+	}
+	
+	// add the downscaled images of source to the pyramid, until there is no masked pixel left 
+	private void buildPyramid(MaskedImage source) {
 		while(source.W>radius && source.H>radius) {
 			if (source.countMasked()==0) break;
-			source = source.downsample();
+			source = source.downsample(pool);
 			this.pyramid.add(source);
-			
 		}
+	}
+	
+	// inpaint the pyramid from the smallest level. Returns the target of the level 0 
+	// (null when it is written to the tiled output)
+	private MaskedImage solve() {
 		int maxlevel=this.pyramid.size();
+		MaskedImage source = this.pyramid.get(maxlevel-1);
+		peakWorkingSet = 0;
 		
-		// The initial target is the same as the smallest source.
-		// We consider that this target contains no masked pixels
-		MaskedImage target = source.copy();
-		for(int y=0;y<target.H;y++)
-			for(int x=0;x<target.W;x++)
-				target.setMask(x,y,false);
+		// incremental and video modes : the solution of this inpainting, and the changes since the previous one
+		boolean keep = (incremental || video) && tiledInput==null;
+		MaskedImage[] targets = keep ? new MaskedImage[maxlevel] : null;
+		NNF[] nnfs = keep ? new NNF[maxlevel] : null;
+		changes = keep ? getChanges() : null;
+		warm = video && changes==null && isPreviousReusable();
+		coherent = warm && getFrameDifference(maxlevel-1)<=coherence;
+		
+		MaskedImage target;
+		if (changes!=null) {
+			// start from the previous target, and from the smallest source where it changed
+			target = previousTargets[maxlevel-1].copy(buffers.get(source.W, source.H));
+			Rectangle r = regionOfInterest(maxlevel-1, 4*radius);
+			for(int y=r.y;y<r.y+r.height;y++)
+				System.arraycopy(source.pixels, y*source.W+r.x, target.pixels, y*target.W+r.x, r.width);
+		} else {
+			// The initial target is the same as the smallest source.
+			// We consider that this target contains no masked pixels
+			target = source.copy(buffers.get(source.W, source.H));
+			for(int y=0;y<target.H;y++)
+				for(int x=0;x<target.W;x++)
+					target.setMask(x,y,false);
+			
+			// video mode : the masked pixels start from the solution of the previous frame
+			if (warm) {
+				MaskedImage previous = previousTargets[maxlevel-1];
+				for(int i=0;i<target.pixels.length;i++)
+					if (source.mask[i]!=0) target.pixels[i] = previous.pixels[i];
+			}
+		}
 		
 		// for each level of the pyramid 
 		for(int level=maxlevel-1;level>=1;level--) {
-			System.out.println("\n*** Processing -  Zoom 1:"+(1<<level)+" ***");
+			long levelstart = System.nanoTime();
+			if (listener!=null) listener.levelStarted(level, target.W, target.H);
 
 			// create Nearest-Neighbor Fields (direct and reverse)
 			source = this.pyramid.get(level);
 			
-			System.out.println("initialize NNF...");
 			if (level==maxlevel-1) {
 				// at first,  use random data as initial guess
-				nnf_TargetToSource = new NNF(target, source, radius);
-				nnf_TargetToSource.randomize();
+				nnf_TargetToSource = createNNF(target, source, level);
+				if (changes!=null)
+					nnf_TargetToSource.initialize(previousNNFs[level], null);
+				else if (warm)
+					nnf_TargetToSource.initializeTemporal(previousNNFs[level], null);
+				else
+					nnf_TargetToSource.randomize();
 			} else {
 				// then, we use the rebuilt (upscaled) target 
 				// and reuse the previous NNF as initial guess
-				NNF new_nnf = new NNF(target, source, radius);
-				new_nnf.initialize(nnf_TargetToSource);
+				NNF new_nnf = createNNF(target, source, level);
+				if (changes!=null)
+					new_nnf.initialize(previousNNFs[level], nnf_TargetToSource);
+				else if (warm)
+					new_nnf.initializeTemporal(previousNNFs[level], nnf_TargetToSource);
+				else
+					new_nnf.initialize(nnf_TargetToSource);
+				
+				// the final target of the previous level is not used anymore
+				if (!keep) buffers.release(nnf_TargetToSource.input);
 				nnf_TargetToSource = new_nnf;
 			}
 			
+			// the links of the hole start from the nearest patches of the source, before the first propagation
+			// (the smallest level usually has no hole)
+			if (indexSeeding && changes==null && source.countMasked()>0) 
+				nnf_TargetToSource.seedFromIndex(new PatchIndex(source, radius));
+			
 			// Build an upscaled target by EM-like algorithm (see "PatchMatch" - page 6)
-			target = ExpectationMaximization(level);
+			target = ExpectationMaximization(level, levelstart);
+			
+			if (keep) {
+				targets[level] = nnf_TargetToSource.input;
+				nnfs[level] = nnf_TargetToSource;
+			}
 		}
-
-		return target.getBufferedImage();
+		if (!keep && nnf_TargetToSource!=null) buffers.release(nnf_TargetToSource.input);
+		
+		if (keep) {
+			targets[0] = target;
+			previousPyramid = pyramid;
+			previousTargets = targets;
+			previousNNFs = nnfs;
+			previousRadius = radius;
+		}
+		return target;
+	}
+	
+	// bounding boxes of the changes of each level of the pyramid since the previous inpainting 
+	// (null for a level without change), or null if the previous solution can not be reused
+	private Rectangle[] getChanges() {
+		if (!isPreviousReusable()) return null;
+		if (!Arrays.equals(previousPyramid.get(0).pixels, pyramid.get(0).pixels)) return null;
+		
+		Rectangle[] changes = new Rectangle[pyramid.size()];
+		for(int level=0;level<pyramid.size();level++)
+			changes[level] = MaskedImage.getDifferenceBounds(previousPyramid.get(level), pyramid.get(level));
+		return changes;
+	}
+	
+	// the previous inpainting has the same radius and the same levels (sizes) as this one
+	private boolean isPreviousReusable() {
+		if (previousPyramid==null || previousRadius!=radius || previousPyramid.size()!=pyramid.size()) return false;
+		for(int level=0;level<pyramid.size();level++) {
+			MaskedImage previous = previousPyramid.get(level), image = pyramid.get(level);
+			if (previous.W!=image.W || previous.H!=image.H) return false;
+		}
+		return true;
+	}
+	
+	// mean difference of the channels of a level with the previous inpainting (on the pixels known in both)
+	private double getFrameDifference(int level) {
+		MaskedImage previous = previousPyramid.get(level), image = pyramid.get(level);
+		long sum=0, count=0;
+		for(int i=0;i<image.pixels.length;i++) {
+			if (image.mask[i]!=0 || previous.mask[i]!=0) continue;
+			int a = image.pixels[i], b = previous.pixels[i];
+			sum += Math.abs(((a>>16)&0xFF)-((b>>16)&0xFF)) + Math.abs(((a>>8)&0xFF)-((b>>8)&0xFF)) + Math.abs((a&0xFF)-(b&0xFF));
+			count+=3;
+		}
+		return (count==0) ? Double.MAX_VALUE : (double)sum/count;
+	}
+	
+	// create a NNF with the settings of this inpainting
+	private NNF createNNF(MaskedImage target, MaskedImage source, int level) {
+		NNF nnf = new NNF(target, source, radius);
+		nnf.pool = pool;
+		nnf.listener = listener;
+		nnf.level = level;
+		nnf.setSeed(seed*31+level);
+		nnf.setActiveSet(activeSet);
+		if (tolerance>0) nnf.setTolerance(tolerance, minNNF);
+		nnf.deadline = deadline;
+		// incremental mode : also reset the links whose patch overlaps the rebuilt target (see ExpectationMaximization)
+		nnf.setRegionOfInterest(regionOfInterest(level, (changes!=null ? 5 : 3)*radius));
+		if (cancelled) nnf.cancel();
+		return nnf;
+	}
+	
+	// update the peak working set with the size of the pyramid and the given images and fields
+	private void updateWorkingSet(MaskedImage target, MaskedImage newtarget) {
+		long size = 0;
+		for(MaskedImage image : pyramid) 
+			if (image!=null) size += image.getMemorySize();
+		size += target.getMemorySize() + nnf_TargetToSource.getMemorySize();
+		if (newtarget!=null) size += newtarget.getMemorySize();
+		peakWorkingSet = Math.max(peakWorkingSet, size);
+	}
+	
+	// the region of a level which can be modified by the inpainting : the bounding box of the masked pixels 
+	// (or of the changes in incremental mode) of this level and of the next (larger) level, dilated by margin. 
+	// Null when the mode is disabled.
+	private Rectangle regionOfInterest(int level, int margin) {
+		if (!regionOfInterest && changes==null) return null;
+		
+		PixelSource image = getLevel(level);
+		Rectangle roi = getRegionBounds(level);
+		if (level>=1) {
+			Rectangle next = getRegionBounds(level-1);
+			if (next!=null) {
+				int x0=next.x/2, y0=next.y/2, x1=(next.x+next.width+1)/2, y1=(next.y+next.height+1)/2;
+				next = new Rectangle(x0, y0, x1-x0, y1-y0);
+				roi = (roi==null) ? next : roi.union(next);
+			}
+		}
+		if (roi==null) return new Rectangle();
+		
+		roi.grow(margin, margin);
+		return roi.intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+	}
+	
+	// image of a level of the pyramid (the level 0 may be on disk)
+	private PixelSource getLevel(int level) {
+		if (level==0 && tiledInput!=null) return tiledInput;
+		return pyramid.get(level);
+	}
+	
+	// pixels to inpaint : the masked pixels, or the changed pixels in incremental mode 
+	private Rectangle getRegionBounds(int level) {
+		if (changes!=null) return (changes[level]==null) ? null : new Rectangle(changes[level]);
+		return getMaskedBounds(level);
+	}
+	
+	private Rectangle getMaskedBounds(int level) {
+		if (level==0 && tiledInput!=null) return (tiledBounds==null) ? null : new Rectangle(tiledBounds);
+		return pyramid.get(level).getMaskedBounds();
 	}
 	
 	// EM-Like algorithm (see "PatchMatch" - page 6)
 	// Returns a double sized target image
-	private MaskedImage ExpectationMaximization(int level) {
+	private MaskedImage ExpectationMaximization(int level, long levelstart) {
 		
-		int iterEM = Math.min(2*level,4);
-		int iterNNF = Math.min(5,level);
+		int iterEM = Math.max(minEM, Math.min(2*level,maxEM));
+		int iterNNF = Math.max(minNNF, Math.min(maxNNF,level));
+		
+		// adaptive schedule : the passes and iterations stop earlier when they converge
+		boolean adaptive = tolerance>0;
+		
+		// video mode : a frame coherent with the previous one starts close to its solution
+		if (coherent) {
+			iterEM = Math.max(1, iterEM/2);
+			iterNNF = Math.max(1, (iterNNF+1)/2);
+		}
 		
 		MaskedImage source = nnf_TargetToSource.output;
 		MaskedImage target = nnf_TargetToSource.input;
 		MaskedImage newtarget = null;
 		
-		System.out.print("EM loop (em="+iterEM+",nnf="+iterNNF+") :");
-
+		// regions of this level and of the next level where the EM steps are needed
+		int R = nnf_TargetToSource.S;
+		Rectangle roi = regionOfInterest(level, (changes!=null ? 4 : 2)*R);
+		Rectangle roiUpscaled = regionOfInterest(level-1, 4*R);
+		int nnfPasses = 0;
+		
 		// EM Loop
 		for(int emloop=1;emloop<=iterEM;emloop++) {
-
-			System.out.print(" "+(1+iterEM-emloop));
+			if (cancelled) throw new CancellationException();
+			long emstart = System.nanoTime();
+			
+			// the time budget is spent : this iteration is the last one, with a single NNF pass
+			boolean late = deadline!=0 && emstart-deadline>0;
+			if (late) iterEM = emloop;
 			
-			// set the new target as current target
+			// set the new target as current target, the previous one goes back to the pool 
+			// (double buffering : it is the next new target)
 			if (newtarget!=null) {
+				buffers.release(target);
 				nnf_TargetToSource.input = newtarget;
 				target = newtarget;
 				newtarget = null;
 			}
 
 			// -- minimize the NNF
-			nnf_TargetToSource.minimize(iterNNF);
+			nnfPasses += nnf_TargetToSource.minimize(late ? 1 : iterNNF);
 			
 			// -- Now we rebuild the target using best patches from source
 			
@@ -121,46 +566,254 @@ public class Inpaint {
 				
 			// Instead of upsizing the final target, we build the last target from the next level source image 
 			// So the final target is less blurry (see "Space-Time Video Completion" - page 5)
-			if (level>=1 && (emloop==iterEM) ) {
+			if (level==1 && (emloop==iterEM) && tiledOutput!=null) {
+				// the final target is too large : build and write it by strips
+				EM_StepTiled(target, nnf_TargetToSource, roiUpscaled);
+				if (listener!=null) {
+					updateWorkingSet(target, null);
+					listener.emIterationCompleted(level, emloop, System.nanoTime()-emstart);
+				}
+				continue;
+			} else if (level>=1 && (emloop==iterEM) ) {
 				newsource = pyramid.get(level-1);
-				newtarget = target.upscale(newsource.W,newsource.H);
+				// incremental mode : outside the region of interest, keep the previous target of the next level
+				if (changes!=null) 
+					newtarget = previousTargets[level-1].copy(buffers.get(newsource.W, newsource.H));
+				else
+					newtarget = target.upscale(newsource.W, newsource.H, buffers.get(newsource.W, newsource.H));
 				upscaled = true;
 			} else {
 				newsource = pyramid.get(level);
-				newtarget = target.copy();
+				newtarget = target.copy(buffers.get(target.W, target.H));
 				upscaled = false;
 			}
 
 			// --- EXPECTATION/MAXIMIZATION step ---
-			EM_Step(newsource, newtarget, nnf_TargetToSource, upscaled);
+			EM_Step(newsource, newtarget, nnf_TargetToSource, upscaled, upscaled?roiUpscaled:roi, (changes!=null)?null:newsource);
+			
+			// adaptive schedule : the target has converged, the next iteration is the last one
+			if (adaptive && !upscaled && emloop+1>=minEM && emloop+1<iterEM && getChange(target, newtarget, roi)<tolerance)
+				iterEM = emloop+1;
+			
+			if (listener!=null) {
+				updateWorkingSet(target, newtarget);
+				listener.emIterationCompleted(level, emloop, System.nanoTime()-emstart);
+			}
 			
 			// debug : display intermediary result
 			//BufferedImage result = MaskedImage.resize(newtarget.getBufferedImage(), initial.W, initial.H);
 			//Demo.display(result);
 		}
-		System.out.println();
 		
+		if (listener!=null) listener.levelCompleted(level, System.nanoTime()-levelstart, iterEM, nnfPasses, newtarget);
 		return newtarget;
 	}
 
-	// store the RGB histograms (used in EM_TensorVoting)
-	double[][] histo = new double[3][256];
+	// mean change of the channels (0-1) of the pixels of the roi (null = whole image) between two targets
+	private static double getChange(MaskedImage a, MaskedImage b, Rectangle roi) {
+		if (roi==null) roi = new Rectangle(0, 0, a.W, a.H);
+		if (roi.isEmpty()) return 0;
+		long sum=0;
+		for(int y=roi.y;y<roi.y+roi.height;y++) {
+			for(int i=y*a.W+roi.x, end=i+roi.width;i<end;i++) {
+				int p = a.pixels[i], q = b.pixels[i];
+				sum += Math.abs(((p>>16)&0xFF)-((q>>16)&0xFF)) + Math.abs(((p>>8)&0xFF)-((q>>8)&0xFF)) + Math.abs((p&0xFF)-(q&0xFF));
+			}
+		}
+		return sum/(3*255.0*roi.width*roi.height);
+	}
 	
 	// Expectation-Maximization step : vote for best estimations of each pixel and compute maximum likelihood
-	private void EM_Step(MaskedImage source, MaskedImage target, NNF nnf, boolean upscaled) {
-		int[][][] field = nnf.getField();
+	// only the pixels inside the roi are voted (null = whole target), the others are copied from the source
+	void EM_Step(MaskedImage source, MaskedImage target, NNF nnf, boolean upscaled, Rectangle roi) {
+		EM_Step(source, target, nnf, upscaled, roi, source);
+	}
+	
+	// same, the pixels outside the roi are copied from 'outside' (null = kept)
+	void EM_Step(MaskedImage source, MaskedImage target, NNF nnf, boolean upscaled, Rectangle roi, MaskedImage outside) {
+		if (roi==null) roi = new Rectangle(0, 0, target.W, target.H);
+		if (outside!=null) copyOutside(roi, outside.pixels, target.pixels, target.W, 0, target.H);
+		if (roi.isEmpty()) return;
+		vote(source, target, 0, nnf, upscaled, roi.x, roi.x+roi.width, roi.y, roi.y+roi.height);
+	}
+	
+	// last EM step of the level 1 when the level 0 is on disk : the final target is built from a bilinear
+	// upscale of the target, voted and written to the tiled output by strips of rows
+	private void EM_StepTiled(MaskedImage target, NNF nnf, Rectangle roi) {
+		TiledImage source = tiledInput;
+		int W = source.W, H = source.H;
+		if (roi==null) roi = new Rectangle(0, 0, W, H);
+		for(int sy=0;sy<H;sy+=TiledImage.TILE) {
+			if (cancelled) throw new CancellationException();
+			int h = Math.min(TiledImage.TILE, H-sy);
+			MaskedImage strip = target.upscaleRows(W, H, sy, sy+h);
+			if (roi.width<W || roi.height<H)
+				copyOutside(roi, source.readRegion(0, sy, W, h).pixels, strip.pixels, W, sy, sy+h);
+			
+			int y0 = Math.max(sy, roi.y), y1 = Math.min(sy+h, roi.y+roi.height);
+			if (y0<y1 && !roi.isEmpty())
+				vote(source, strip, sy, nnf, true, roi.x, roi.x+roi.width, y0, y1);
+			tiledOutput.writeRegion(strip, 0, sy);
+		}
+	}
+	
+	// copy the pixels outside the roi, for the rows [y0,y1) stored from the row y0 in the arrays 
+	private static void copyOutside(Rectangle roi, int[] from, int[] to, int W, int y0, int y1) {
+		if (roi.x<=0 && roi.width>=W && roi.y<=y0 && roi.y+roi.height>=y1) return;
+		for(int y=y0;y<y1;y++) {
+			int i=(y-y0)*W;
+			if (y<roi.y || y>=roi.y+roi.height) {
+				System.arraycopy(from, i, to, i, W);
+			} else {
+				System.arraycopy(from, i, to, i, roi.x);
+				System.arraycopy(from, i+roi.x+roi.width, to, i+roi.x+roi.width, W-roi.x-roi.width);
+			}
+		}
+	}
+	
+	// vote the target pixels in [x0,x1)x[y0,y1), the target holds the rows from ty 
+	private void vote(final PixelSource source, final MaskedImage target, final int ty, final NNF nnf, final boolean upscaled, final int x0, final int x1, int y0, int y1) {
+		int bands = RowBands.count(pool, y0, y1);
+		int R = upscaled ? 2*nnf.S : nnf.S;
+		if (votes.length<bands) votes = Arrays.copyOf(votes, bands);
+		for(int b=0;b<bands;b++)
+			if (votes[b]==null || votes[b].capacity<(2*R+1)*(2*R+1) || votes[b].fixed!=integerVotes) votes[b] = new Votes((2*R+1)*(2*R+1), integerVotes);
+		
+		// each pixel only depends on the source and the NNF : split the target in bands of rows
+		final Votes[] scratch = votes;
+		RowBands.forEach(pool, y0, y1, new RowBands.Band() {
+			@Override
+			public void run(int band, int by0, int by1) {
+				EM_Step(source, target, ty, nnf, upscaled, x0, x1, by0, by1, scratch[band]);
+			}
+		});
+	}
+	
+	// sparse RGB histograms of the vote of a pixel : only the bins which received a contribution
+	// are listed (by band), sorted and cleared. The weights are summed either in doubles (histo)
+	// or in fixed point (fixedHisto)
+	static class Votes {
+		// only the histogram of the representation in use is allocated (fixed = integer votes)
+		final boolean fixed;
+		final double[] histo;
+		final int[] fixedHisto;
+		final boolean[] used = new boolean[3*256];
+		final int[] bins;
+		final int[] count = new int[3];
+		final int capacity;
+		double wsum;
+		long fixedWsum;
+		
+		Votes(int capacity, boolean fixed) {
+			this.capacity = capacity;
+			this.fixed = fixed;
+			bins = new int[3*capacity];
+			histo = fixed ? null : new double[3*256];
+			fixedHisto = fixed ? new int[3*256] : null;
+		}
+		
+		void add(int rgb, double w) {
+			for(int band=0;band<3;band++)
+				histo[bin(band, rgb)]+=w;
+			wsum+=w;
+		}
+		
+		void add(int rgb, int w) {
+			for(int band=0;band<3;band++)
+				fixedHisto[bin(band, rgb)]+=w;
+			fixedWsum+=w;
+		}
+		
+		// the bin of the band for the color, listed on first use
+		private int bin(int band, int rgb) {
+			int i = band*256 + ((rgb>>(16-8*band))&0xFF);
+			if (!used[i]) {
+				used[i] = true;
+				bins[band*capacity+count[band]++] = i;
+			}
+			return i;
+		}
+		
+		// average of the contributions of significant pixels (near the median)
+		int median() {
+			double lowth=0.40*wsum;  // low threshold in the CDF
+			double highth=0.60*wsum; // high threshold in the CDF
+			int rgb=0;
+			for(int band=0;band<3;band++) {
+				// walk the CDF through the bins which received a contribution (the others are empty)
+				int offset = band*capacity;
+				Arrays.sort(bins, offset, offset+count[band]);
+				double cdf=0, contrib=0, wcontrib=0;
+				for(int k=0;k<count[band];k++) {
+					int i = bins[offset+k]-band*256;
+					double h = histo[bins[offset+k]];
+					cdf+=h;
+					if (cdf<lowth) continue;
+					contrib+=i*h; 
+					wcontrib+=h;
+					if (cdf>highth) break;
+				}
+				int value = (int)(contrib/wcontrib);
+				rgb = (rgb<<8) | (value & 0xFF);
+			}
+			return rgb;
+		}
+		
+		// same as median() in integers : the thresholds 40% and 60% are compared as 5*cdf vs 2*wsum and 3*wsum
+		int fixedMedian() {
+			long lowth=2*fixedWsum, highth=3*fixedWsum;
+			int rgb=0;
+			for(int band=0;band<3;band++) {
+				int offset = band*capacity;
+				Arrays.sort(bins, offset, offset+count[band]);
+				long cdf=0, contrib=0, wcontrib=0;
+				for(int k=0;k<count[band];k++) {
+					int i = bins[offset+k]-band*256;
+					int h = fixedHisto[bins[offset+k]];
+					cdf+=h;
+					if (5*cdf<lowth) continue;
+					contrib+=(long)i*h; 
+					wcontrib+=h;
+					if (5*cdf>highth) break;
+				}
+				int value = (int)(contrib/wcontrib);
+				rgb = (rgb<<8) | (value & 0xFF);
+			}
+			return rgb;
+		}
+		
+		void clear() {
+			for(int band=0;band<3;band++) {
+				int from = band*capacity, to = from+count[band];
+				if (fixed) {
+					for(int k=from;k<to;k++) {
+						fixedHisto[bins[k]] = 0;
+						used[bins[k]] = false;
+					}
+				} else {
+					for(int k=from;k<to;k++) {
+						histo[bins[k]] = 0;
+						used[bins[k]] = false;
+					}
+				}
+				count[band] = 0;
+			}
+			wsum = 0;
+			fixedWsum = 0;
+		}
+	}
+	
+	// EM step for the target pixels in [x0,x1)x[y0,y1), votes = scratch space
+	// the target holds the rows from ty (0 = whole image)
+	private void EM_Step(PixelSource source, MaskedImage target, int ty, NNF nnf, boolean upscaled, int x0, int x1, int y0, int y1, Votes votes) {
+		boolean fixed = votes.fixed;
+		int sourceW = source.getWidth(), sourceH = source.getHeight();
 		int R = nnf.S;
 		if (upscaled) R*=2;
 		
 		// for each pixel in the target image
-		for(int y=0;y<target.H;y++) {
-			for(int x=0;x<target.W;x++) {
-
-				// clear histograms
-				Arrays.fill(histo[0], 0);
-				Arrays.fill(histo[1], 0);
-				Arrays.fill(histo[2], 0);
-				double wsum=0;
+		for(int y=y0;y<y1;y++) {
+			for(int x=x0;x<x1;x++) {
 
 				// **** ESTIMATION STEP ****
 				
@@ -172,58 +825,46 @@ public class Inpaint {
 						int xpt=x+dx, ypt=y+dy;
 						
 						// get best corresponding source patch from the NNF
-						int xst,yst; double w;
+						int xst,yst,d;
 						if (!upscaled) {
 							if (xpt<0 || xpt>=nnf.input.W) continue;
 							if (ypt<0 || ypt>=nnf.input.H) continue;
-							xst=field[xpt][ypt][0];
-							yst=field[xpt][ypt][1];
-							w = MaskedImage.similarity[field[xpt][ypt][2]];
+							xst=nnf.getLinkX(xpt,ypt);
+							yst=nnf.getLinkY(xpt,ypt);
+							d=nnf.getLinkDistance(xpt,ypt);
 						} else {
 							if (xpt<0 || xpt>=2*nnf.input.W) continue;
 							if (ypt<0 || ypt>=2*nnf.input.H) continue;
-							xst=2*field[xpt/2][ypt/2][0]+(xpt%2);
-							yst=2*field[xpt/2][ypt/2][1]+(ypt%2);
-							w = MaskedImage.similarity[field[xpt/2][ypt/2][2]];
+							xst=2*nnf.getLinkX(xpt/2,ypt/2)+(xpt%2);
+							yst=2*nnf.getLinkY(xpt/2,ypt/2)+(ypt%2);
+							d=nnf.getLinkDistance(xpt/2,ypt/2);
 						}
 						
 						// get pixel corresponding to (x,y) in the source patch
 						int xs=xst-dx, ys=yst-dy;
-						if (xs<0 || xs>=source.W) continue;
-						if (ys<0 || ys>=source.H) continue;
+						if (xs<0 || xs>=sourceW) continue;
+						if (ys<0 || ys>=sourceH) continue;
 						
 						// add contribution of the source pixel
-						if (source.isMasked(xs, ys)) continue;
-						int red   = source.getSample(xs, ys, 0);
-						int green = source.getSample(xs, ys, 1);
-						int blue  = source.getSample(xs, ys, 2);
-						histo[0][red]+=w;
-						histo[1][green]+=w;
-						histo[2][blue]+=w;
-						wsum+=w;
+						int rgb   = source.getMaskedRGB(xs, ys);
+						if (rgb<0) continue;
+						if (fixed)
+							votes.add(rgb, (int)MaskedImage.weight[d>>MaskedImage.WSHIFT]);
+						else
+							votes.add(rgb, MaskedImage.similarity[d]);
 					}
 				}
 
 				// no significant contribution : conserve the values from previous target
-				if (wsum<1) continue;
+				if (fixed ? votes.fixedWsum<MaskedImage.WSCALE : votes.wsum<1) {
+					votes.clear();
+					continue;
+				}
 				
 				// **** MAXIMIZATION STEP ****
 				
-				// average the contributions of significant pixels (near the median) 
-				double lowth=0.40*wsum;  // low threshold in the CDF
-				double highth=0.60*wsum; // high threshold in the CDF
-				for(int band=0;band<3;band++) {
-					double cdf=0, contrib=0, wcontrib=0;
-					for(int i=0;i<256;i++) {
-						cdf+=histo[band][i];
-						if (cdf<lowth) continue;
-						contrib+=i*histo[band][i]; 
-						wcontrib+=histo[band][i];
-						if (cdf>highth) break;
-					}
-					int value = (int)(contrib/wcontrib);
-					target.setSample(x, y, band, value);
-				}
+				target.pixels[(y-ty)*target.W+x] = fixed ? votes.fixedMedian() : votes.median();
+				votes.clear();
 			}
 		}
 	}
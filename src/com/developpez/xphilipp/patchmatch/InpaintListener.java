@@ -0,0 +1,40 @@
+package com.developpez.xphilipp.patchmatch;
+
+/**
+ * Progress and metrics of an inpainting (see Inpaint.setListener)
+ * 
+ * Levels are numbered like the pyramid : 0 is the full resolution, level L is zoomed 1:2^L.
+ * All the methods do nothing by default. They are called from the inpainting thread.
+ *
+ */
+public interface InpaintListener {
+
+	// the pyramid of images has been built
+	default void pyramidBuilt(int levels, long nanos) {
+	}
+	
+	// the processing of a level starts
+	default void levelStarted(int level, int width, int height) {
+	}
+	
+	// an NNF minimization pass is done
+	// energy = sum of the distances of the links, distances = number of patch distances computed by the pass,
+	// active = number of links to visit, improved = number of improvements
+	default void nnfPassCompleted(int level, int pass, long energy, long distances, int active, int improved) {
+	}
+	
+	// an EM iteration (NNF minimization + EM step) is done
+	default void emIterationCompleted(int level, int iteration, long nanos) {
+	}
+	
+	// a level is done : result is the target built from this level (it has the size of the next level)
+	// it is only valid during the call : its buffer is reused by the next iterations
+	// result is null for level 1 of a tiled inpainting (see Inpaint.inpaint(TiledImage, TiledImage, int)) : 
+	// the full resolution target is not built in memory, it is written to the output by strips
+	default void levelCompleted(int level, long nanos, int emIterations, int nnfPasses, MaskedImage result) {
+	}
+	
+	// the inpainting is done, peakWorkingSet = maximum size (in bytes) of the images and fields in use
+	default void inpaintCompleted(long nanos, long peakWorkingSet) {
+	}
+}
@@ -0,0 +1,149 @@
+package com.developpez.xphilipp.patchmatch;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batch inpainting : runs many (image, mask, radius) jobs on a bounded pool of workers
+ * 
+ * Each worker thread owns one Inpaint instance, reused (with its scratch buffers) from job to job : 
+ * override createInpaint() to cap them (Inpaint.setBufferPoolSize).
+ * At most 'queueCapacity' jobs wait for a worker : submit() blocks when the queue is full.
+ * Future.cancel(true) stops a running job at its next NNF pass or EM iteration.
+ *
+ */
+public class InpaintService {
+
+	private final ThreadPoolExecutor executor;
+	
+	// one permit per running or queued job : this is what bounds the queue
+	private final Semaphore slots;
+	
+	// the Inpaint instance of each worker thread
+	private final ThreadLocal<Inpaint> inpaints = new ThreadLocal<Inpaint>() {
+		@Override
+		protected Inpaint initialValue() {
+			return createInpaint();
+		}
+	};
+	
+	public InpaintService(int workers, int queueCapacity) {
+		if (workers<1) throw new IllegalArgumentException("workers must be >= 1 : "+workers);
+		if (queueCapacity<1) throw new IllegalArgumentException("queueCapacity must be >= 1 : "+queueCapacity);
+		this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+		this.slots = new Semaphore(workers+queueCapacity);
+	}
+	
+	// create the Inpaint instance of a worker, override to change its settings
+	protected Inpaint createInpaint() {
+		return new Inpaint();
+	}
+	
+	// submit a job, waits while the queue is full
+	public Future<BufferedImage> submit(BufferedImage image, boolean[][] mask, int radius) throws InterruptedException {
+		slots.acquire();
+		return execute(image, mask, radius);
+	}
+	
+	// submit a job, waits at most the given time while the queue is full (returns null on timeout)
+	public Future<BufferedImage> submit(BufferedImage image, boolean[][] mask, int radius, long timeout, TimeUnit unit) throws InterruptedException {
+		if (!slots.tryAcquire(timeout, unit)) return null;
+		return execute(image, mask, radius);
+	}
+	
+	private Future<BufferedImage> execute(BufferedImage image, boolean[][] mask, int radius) {
+		Job job = new Job(new Task(image, mask, radius));
+		try {
+			executor.execute(job);
+		} catch (RejectedExecutionException e) {
+			slots.release();
+			throw e;
+		}
+		return job;
+	}
+	
+	// a submitted job : its permit is released when it is done (completed, failed or cancelled, even while queued)
+	private class Job extends FutureTask<BufferedImage> {
+		private final Task task;
+		
+		Job(Task task) {
+			super(task);
+			this.task = task;
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			// the inpainting does not check the interrupts
+			if (cancelled && mayInterruptIfRunning) task.cancel();
+			return cancelled;
+		}
+		
+		@Override
+		protected void done() {
+			slots.release();
+		}
+	}
+	
+	// the inpainting of a job, on the Inpaint of the worker which runs it
+	private class Task implements Callable<BufferedImage> {
+		private final BufferedImage image;
+		private final boolean[][] mask;
+		private final int radius;
+		
+		// guarded by this : the Inpaint running the job (null when not running)
+		private Inpaint inpaint;
+		private boolean cancelled;
+		
+		Task(BufferedImage image, boolean[][] mask, int radius) {
+			this.image = image;
+			this.mask = mask;
+			this.radius = radius;
+		}
+		
+		@Override
+		public BufferedImage call() {
+			Inpaint worker = inpaints.get();
+			synchronized(this) {
+				if (cancelled) throw new CancellationException();
+				// a cancel() of the previous job of the worker may have come after its end
+				worker.clearCancel();
+				inpaint = worker;
+			}
+			try {
+				return worker.inpaint(image, mask, radius);
+			} finally {
+				synchronized(this) {
+					inpaint = null;
+				}
+			}
+		}
+		
+		synchronized void cancel() {
+			cancelled = true;
+			if (inpaint!=null) inpaint.cancel();
+		}
+	}
+	
+	// number of jobs waiting for a worker
+	public int getQueueSize() {
+		return executor.getQueue().size();
+	}
+	
+	// stop accepting jobs, the submitted ones are still run
+	public void shutdown() {
+		executor.shutdown();
+	}
+	
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+}
@@ -1,19 +1,26 @@
 package com.developpez.xphilipp.patchmatch;
 
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 /**
- * Wrapper/Helper for Masked RGB BufferedImage 
+ * Wrapper/Helper for Masked RGB image
+ * 
+ * Pixels are stored row-major in a packed int[] (0xRRGGBB) and the mask in a byte[] (1=masked),
+ * so the hot loops walk memory in scanline order. A BufferedImage is only built on demand.
  * 
  * @author Xavier Philippeau
  *
  */
-public class MaskedImage {
+public class MaskedImage implements PixelSource {
 
 	// image data
-	private boolean[][] mask;
-	private BufferedImage image;
+	final int[] pixels;
+	final byte[] mask;
 	public final int W,H;
 	
 	// the maximum value returned by MaskedImage.distance() 
@@ -21,6 +28,11 @@ public class MaskedImage {
 	
 	// array for converting distance to similarity
 	public static final double[] similarity;
+	
+	// similarity in fixed point (WSCALE = 1.0), indexed by distance>>WSHIFT :
+	// 4096 entries of 16 bits, small enough to stay in the L1 cache
+	public static final int WSCALE = 1<<16, WSHIFT = 4;
+	static final char[] weight;
 
 	static {
 		// build similarity curve such that similarity[0%]=0.999 and similarity[4%]=0.5
@@ -36,55 +48,135 @@ public class MaskedImage {
 			double t = (double)i/similarity.length;
 			similarity[i] = 0.5-0.5*Math.tanh(coef*(t-t_halfmax));
 		}
+		
+		// sample the curve at the middle of each range of distances
+		weight = new char[(DSCALE>>WSHIFT)+1];
+		for(int i=0;i<weight.length;i++) {
+			int d = Math.min(DSCALE, (i<<WSHIFT)+(1<<WSHIFT)/2);
+			weight[i] = (char)Math.round(similarity[d]*WSCALE);
+		}
 	}
 	
 	// construct from existing BufferedImage and mask
 	public MaskedImage(BufferedImage image, boolean[][] mask) {
-		this.image = image;
-		this.W=image.getWidth();
-		this.H=image.getHeight();
-		this.mask = mask;
-		if (this.mask==null)
-			this.mask = new boolean[W][H];
+		this(image.getWidth(), image.getHeight());
+		image.getRGB(0, 0, W, H, pixels, 0, W);
+		for(int i=0;i<pixels.length;i++)
+			pixels[i] &= 0xFFFFFF;
+		if (mask!=null)
+			for(int y=0;y<H;y++)
+				for(int x=0;x<W;x++)
+					if (mask[x][y]) this.mask[y*W+x]=1;
 	}
 
 	// construct empty image
 	public MaskedImage(int width, int height) {
+		this(width, height, new int[width*height], new byte[width*height]);
+	}
+	
+	// construct over existing pixel/mask arrays
+	MaskedImage(int width, int height, int[] pixels, byte[] mask) {
 		this.W=width;
 		this.H=height;
-		this.image = new BufferedImage(W,H,BufferedImage.TYPE_INT_RGB);
-		this.mask = new boolean[W][H];
+		this.pixels = pixels;
+		this.mask = mask;
 	}
 		
+	// build a new BufferedImage from the pixel data
 	public BufferedImage getBufferedImage() {
+		BufferedImage image = new BufferedImage(W,H,BufferedImage.TYPE_INT_RGB);
+		int[] data = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+		System.arraycopy(pixels, 0, data, 0, pixels.length);
 		return image;
 	}
 	
+	@Override
+	public int getWidth() {
+		return W;
+	}
+	
+	@Override
+	public int getHeight() {
+		return H;
+	}
+	
+	@Override
+	public int getMaskedRGB(int x, int y) {
+		int i = y*W+x;
+		return (mask[i]!=0) ? -1 : pixels[i];
+	}
+	
 	public int getSample(int x, int y, int band) {
-		return image.getRaster().getSample(x, y, band);
+		return (pixels[y*W+x]>>(16-8*band)) & 0xFF;
 	}
 	
 	public void setSample(int x, int y, int band, int value) {
-		image.getRaster().setSample(x, y, band, value);
+		int shift = 16-8*band, i = y*W+x;
+		pixels[i] = (pixels[i] & ~(0xFF<<shift)) | ((value & 0xFF)<<shift);
+	}
+
+	public int getRGB(int x, int y) {
+		return pixels[y*W+x];
+	}
+	
+	public void setRGB(int x, int y, int rgb) {
+		pixels[y*W+x] = rgb & 0xFFFFFF;
 	}
 
 	public boolean isMasked(int x, int y) {
-		return mask[x][y];
+		return mask[y*W+x]!=0;
 	}
 	
 	public void setMask(int x, int y, boolean value) {
-		mask[x][y]=value;
+		mask[y*W+x] = (byte)(value?1:0);
 	}
 
 	
+	// size of the pixel and mask data, in bytes
+	public long getMemorySize() {
+		return 4L*pixels.length + mask.length;
+	}
+	
 	public int countMasked() {
 		int count=0;
-		for(int y=0;y<H;y++)
-			for(int x=0;x<W;x++) 
-				if (mask[x][y]) count++;
+		for(int i=0;i<mask.length;i++) 
+			if (mask[i]!=0) count++;
 		return count;
 	}	
 
+	// return the bounding box of the masked pixels (null if there is no masked pixel)
+	public Rectangle getMaskedBounds() {
+		int xmin=W, ymin=H, xmax=-1, ymax=-1;
+		for(int y=0;y<H;y++) {
+			for(int x=0;x<W;x++) {
+				if (mask[y*W+x]==0) continue;
+				if (x<xmin) xmin=x;
+				if (x>xmax) xmax=x;
+				if (y<ymin) ymin=y;
+				ymax=y;
+			}
+		}
+		if (xmax<0) return null;
+		return new Rectangle(xmin, ymin, xmax-xmin+1, ymax-ymin+1);
+	}
+
+	// return the bounding box of the pixels whose value or mask differs between two images of 
+	// the same size (null if they are the same)
+	static Rectangle getDifferenceBounds(MaskedImage a, MaskedImage b) {
+		int xmin=a.W, ymin=a.H, xmax=-1, ymax=-1;
+		for(int y=0;y<a.H;y++) {
+			for(int x=0, i=y*a.W;x<a.W;x++,i++) {
+				if (a.pixels[i]==b.pixels[i] && a.mask[i]==b.mask[i]) continue;
+				if (x<xmin) xmin=x;
+				if (x>xmax) xmax=x;
+				if (y<ymin) ymin=y;
+				ymax=y;
+			}
+		}
+		if (xmax<0) return null;
+		return new Rectangle(xmin, ymin, xmax-xmin+1, ymax-ymin+1);
+	}
+
 	// return true if the patch contains one (or more) masked pixel
 	public boolean constainsMasked(int x, int y, int S) {
 		for(int dy=-S;dy<=S;dy++) {
@@ -92,7 +184,7 @@ public class MaskedImage {
 				int xs=x+dx, ys=y+dy;
 				if (xs<0 || xs>=W) continue;
 				if (ys<0 || ys>=H) continue;
-				if (mask[xs][ys]) return true;
+				if (mask[ys*W+xs]!=0) return true;
 			}
 		}
 		return false;
@@ -100,44 +192,79 @@ public class MaskedImage {
 	
 	// distance between two patches in two images
 	public static int distance(MaskedImage source,int xs,int ys, MaskedImage target,int xt,int yt, int S) {
-		long distance=0, wsum=0, ssdmax = 10*255*255;
+		return distance(source,xs,ys, target,xt,yt, S, Integer.MAX_VALUE);
+	}
+	
+	// distance between two patches in two images, bounded by the best known distance :
+	// gives up as soon as the result can no longer be lower than 'bound' and then returns 
+	// a (partial) value which is >= bound
+	public static int distance(MaskedImage source,int xs,int ys, MaskedImage target,int xt,int yt, int S, int bound) {
+		return scale(ssd(source,xs,ys, target,xt,yt, S, bound), S);
+	}
+	
+	// unscaled distance (sum of the SSD of the pixels) between two patches, bounded as distance()
+	static long ssd(MaskedImage source,int xs,int ys, MaskedImage target,int xt,int yt, int S, int bound) {
+		long distance=0, ssdmax = DistanceKernel.SSDMAX;
+		long wsum = (2*S+1)*(2*S+1)*ssdmax;
+		long limit = (long)bound*wsum; 
+		DistanceKernel kernel = DistanceKernel.INSTANCE;
 		
-		// for each pixel in the source patch
-		for(int dy=-S;dy<=S;dy++) {
-			for(int dx=-S;dx<=S;dx++) {
-				wsum+=ssdmax;
-				
-				int xks=xs+dx, yks=ys+dy;
-				if (xks<0 || xks>=source.W) {distance+=ssdmax; continue;}
-				if (yks<0 || yks>=source.H) {distance+=ssdmax; continue;}
-				
-				// cannot use masked pixels as a valid source of information
-				if (source.isMasked(xks, yks)) {distance+=ssdmax; continue;}
-				
-				// corresponding pixel in the target patch
-				int xkt=xt+dx, ykt=yt+dy;
-				if (xkt<0 || xkt>=target.W) {distance+=ssdmax; continue;}
-				if (ykt<0 || ykt>=target.H) {distance+=ssdmax; continue;}
-
-				// cannot use masked pixels as a valid source of information
-				if (target.isMasked(xkt, ykt)) {distance+=ssdmax; continue;}
-				
-				// SSD distance between pixels (each value is in [0,255^2])
-				long ssd=0;
-				
-				// value distance (weight for R/G/B components = 3/6/1)
-				for(int band=0;band<3;band++) {
-					int weight = (band==0)?3:(band==1)?6:1;
-					double diff2 = Math.pow( source.getSample(xks, yks, band) - target.getSample(xkt, ykt, band) , 2); // Value 
-					ssd += weight*diff2;
-				}
+		// columns of the patch which are inside both images
+		int dxmin = Math.max(-S, Math.max(-xs, -xt));
+		int dxmax = Math.min(S, Math.min(source.W-1-xs, target.W-1-xt));
+		int n = Math.max(0, dxmax-dxmin+1);
 		
-				// add pixel distance to global patch distance
-				distance += ssd;
-			}
+		// for each row of the source patch
+		for(int dy=-S;dy<=S;dy++) {
+			// the distance only grows : stop when the bound is reached
+			if (DSCALE*distance>=limit) break;
+			
+			// pixels outside the images cannot be used as a valid source of information
+			int yks=ys+dy, ykt=yt+dy;
+			if (yks<0 || yks>=source.H || ykt<0 || ykt>=target.H || n==0) {distance+=(2*S+1)*ssdmax; continue;}
+			distance+=(2*S+1-n)*ssdmax;
+			
+			// SSD distance between the pixels of the row (masked pixels count as ssdmax)
+			distance += kernel.row(source.pixels, source.mask, yks*source.W+xs+dxmin, target.pixels, target.mask, ykt*target.W+xt+dxmin, n);
 		}
 		
-		return (int)(DSCALE*distance/wsum);
+		return distance;
+	}
+	
+	// unscaled distance of the row dy of two patches (same terms as ssd())
+	static long rowSSD(MaskedImage source,int xs,int ys, MaskedImage target,int xt,int yt, int S, int dy) {
+		long ssdmax = DistanceKernel.SSDMAX;
+		int yks=ys+dy, ykt=yt+dy;
+		int dxmin = Math.max(-S, Math.max(-xs, -xt));
+		int dxmax = Math.min(S, Math.min(source.W-1-xs, target.W-1-xt));
+		int n = Math.max(0, dxmax-dxmin+1);
+		if (yks<0 || yks>=source.H || ykt<0 || ykt>=target.H || n==0) return (2*S+1)*ssdmax;
+		return (2*S+1-n)*ssdmax + DistanceKernel.INSTANCE.row(source.pixels, source.mask, yks*source.W+xs+dxmin, target.pixels, target.mask, ykt*target.W+xt+dxmin, n);
+	}
+	
+	// unscaled distance of the column dx of two patches (same terms as ssd())
+	static long columnSSD(MaskedImage source,int xs,int ys, MaskedImage target,int xt,int yt, int S, int dx) {
+		long ssdmax = DistanceKernel.SSDMAX;
+		int xks=xs+dx, xkt=xt+dx;
+		if (xks<0 || xks>=source.W || xkt<0 || xkt>=target.W) return (2*S+1)*ssdmax;
+		long distance=0;
+		for(int dy=-S;dy<=S;dy++) {
+			int yks=ys+dy, ykt=yt+dy;
+			if (yks<0 || yks>=source.H || ykt<0 || ykt>=target.H) {distance+=ssdmax; continue;}
+			int is = yks*source.W+xks, it = ykt*target.W+xkt;
+			if (source.mask[is]!=0 || target.mask[it]!=0) {distance+=ssdmax; continue;}
+			int ps = source.pixels[is], pt = target.pixels[it];
+			int dr = ((ps>>16)&0xFF) - ((pt>>16)&0xFF);
+			int dg = ((ps>>8)&0xFF) - ((pt>>8)&0xFF);
+			int db = (ps&0xFF) - (pt&0xFF);
+			distance += 3*dr*dr + 6*dg*dg + db*db;
+		}
+		return distance;
+	}
+	
+	// scaled distance (0 to DSCALE) of an unscaled distance between two patches
+	static int scale(long ssd, int S) {
+		return (int)(DSCALE*ssd/((2*S+1)*(2*S+1)*(long)DistanceKernel.SSDMAX));
 	}
 	
 	// Helper for BufferedImage resize
@@ -152,77 +279,216 @@ public class MaskedImage {
 
 	// return a copy of the image
 	public MaskedImage copy() {
-		boolean[][] newmask= new boolean[W][H];
-		BufferedImage newimage = new BufferedImage(W,H, BufferedImage.TYPE_INT_RGB);
-		newimage.createGraphics().drawImage(image, 0, 0, null);
-		for(int y=0;y<H;y++)
-			for(int x=0;x<W;x++)
-				newmask[x][y] = mask[x][y];
-		return new MaskedImage(newimage,newmask);
+		return new MaskedImage(W, H, pixels.clone(), mask.clone());
+	}
+	
+	// copy the image into 'out' (same size), or into a new image if out is null
+	public MaskedImage copy(MaskedImage out) {
+		if (out==null) return copy();
+		if (out.W!=W || out.H!=H) throw new IllegalArgumentException("output size "+out.W+"x"+out.H+" is not "+W+"x"+H);
+		System.arraycopy(pixels, 0, out.pixels, 0, pixels.length);
+		System.arraycopy(mask, 0, out.mask, 0, mask.length);
+		return out;
 	}
 	
 	// return a downsampled image (factor 1/2)
 	public MaskedImage downsample() {
-		int newW=W/2, newH=H/2;
+		MaskedImage newimage = new MaskedImage(W/2, H/2);
+		downsample(this, 0, H, newimage, 0, newimage.W, 0, newimage.H);
+		return newimage;
+	}
+	
+	// same, computed by bands of rows on the worker pool (null = single thread)
+	MaskedImage downsample(ForkJoinPool pool) {
+		final MaskedImage newimage = new MaskedImage(W/2, H/2);
+		RowBands.forEach(pool, 0, newimage.H, new RowBands.Band() {
+			@Override
+			public void run(int band, int ny0, int ny1) {
+				downsample(MaskedImage.this, 0, H, newimage, 0, newimage.W, ny0, ny1);
+			}
+		});
+		return newimage;
+	}
+	
+	// compute the pixels [nx0,nx1)x[ny0,ny1) of the downsampled image 'newimage' of an image of height fullH,
+	// from the strip 'image' which holds the rows [sy,sy+image.H) of this image (at least [2*ny0-2,2*ny1+2))
+	//
+	// The binomial kernel is separable : each row of the image is first filtered horizontally (sums of the
+	// weighted unmasked values, of the unmasked weights and count of the masked pixels, for each output 
+	// column), then the output pixels sum the filtered rows of their window. The last 6 filtered rows are kept.
+	static void downsample(MaskedImage image, int sy, int fullH, MaskedImage newimage, int nx0, int nx1, int ny0, int ny1) {
+		int W=image.W, newW=newimage.W, n=nx1-nx0;
+		if (n<=0) return;
 		
 		// Binomial coefficient kernels
 		int[] kernelEven = new int[] {1,5,10,10,5,1}; 
 		int[] kernelOdd = new int[] {1,4,6,4,1};
 
 		int[] kernelx = (W%2==0)?kernelEven:kernelOdd;
-		int[] kernely = (H%2==0)?kernelEven:kernelOdd;
-
-		MaskedImage newimage = new MaskedImage(newW, newH);
+		int[] kernely = (fullH%2==0)?kernelEven:kernelOdd;
 		
-		for(int y=0,ny=0;y<H-1;y+=2,ny++) {
-			for(int x=0,nx=0;x<W-1;x+=2,nx++) {
-				
-				long r=0,g=0,b=0,ksum=0,masked=0,total=0;
-				
-				for(int dy=0;dy<kernely.length;dy++) {
-					int yk=y+dy-2;
-					if (yk<0 || yk>=H) continue;
-					for(int dx=0;dx<kernelx.length;dx++) {
-						int xk = x+dx-2;
+		// filtered rows : row yk is stored in the slot yk%6
+		int[] hr = new int[6*n], hg = new int[6*n], hb = new int[6*n], hk = new int[6*n], hm = new int[6*n];
+		int[] slots = {-1,-1,-1,-1,-1,-1};
+		
+		for(int ny=ny0,y=2*ny0;ny<ny1;y+=2,ny++) {
+			
+			// filter the rows of the window which are not in the slots yet
+			for(int dy=0;dy<kernely.length;dy++) {
+				int yk=y+dy-2;
+				if (yk<0 || yk>=fullH || slots[yk%6]==yk) continue;
+				slots[yk%6]=yk;
+				int row=(yk-sy)*W;
+				for(int nx=nx0,j=(yk%6)*n;nx<nx1;nx++,j++) {
+					int r=0,g=0,b=0,ksum=0,masked=0;
+					for(int dx=0,xk=2*nx-2;dx<kernelx.length;dx++,xk++) {
 						if (xk<0 || xk>=W) continue;
-						
-						total++;
-						if (mask[xk][yk]) {masked++;continue;}
-						
-						int k = kernelx[dx]*kernely[dy];
-						r+= k*this.getSample(xk, yk, 0);
-						g+= k*this.getSample(xk, yk, 1);
-						b+= k*this.getSample(xk, yk, 2);
+						int i = row+xk;
+						if (image.mask[i]!=0) {masked++;continue;}
+						int k = kernelx[dx], p = image.pixels[i];
+						r+= k*((p>>16)&0xFF);
+						g+= k*((p>>8)&0xFF);
+						b+= k*(p&0xFF);
 						ksum+=k;
 					}
+					hr[j]=r; hg[j]=g; hb[j]=b; hk[j]=ksum; hm[j]=masked;
+				}
+			}
+			
+			// number of pixels of the window inside the image
+			int rows=0;
+			for(int dy=0;dy<kernely.length;dy++) {
+				int yk=y+dy-2;
+				if (yk>=0 && yk<fullH) rows++;
+			}
+			
+			for(int nx=nx0,c=0;nx<nx1;nx++,c++) {
+				int r=0,g=0,b=0,ksum=0,masked=0;
+				for(int dy=0;dy<kernely.length;dy++) {
+					int yk=y+dy-2;
+					if (yk<0 || yk>=fullH) continue;
+					int k = kernely[dy], j = (yk%6)*n+c;
+					r+= k*hr[j];
+					g+= k*hg[j];
+					b+= k*hb[j];
+					ksum+= k*hk[j];
+					masked+= hm[j];
 				}
+				int x0 = Math.max(0, 2*nx-2), x1 = Math.min(W, 2*nx-2+kernelx.length);
+				int total = rows*(x1-x0);
 				
+				// rounded averages (same as (int)((double)r/ksum+0.5))
+				int o = ny*newW+nx;
 				if (ksum>0) {
-					newimage.setSample(nx, ny, 0, (int)((double)r/ksum+0.5));
-					newimage.setSample(nx, ny, 1, (int)((double)g/ksum+0.5));
-					newimage.setSample(nx, ny, 2, (int)((double)b/ksum+0.5));
-					newimage.setMask(nx, ny, false);
+					int nr = (2*r+ksum)/(2*ksum);
+					int ng = (2*g+ksum)/(2*ksum);
+					int nb = (2*b+ksum)/(2*ksum);
+					newimage.pixels[o] = (nr<<16)|(ng<<8)|nb;
 				} else {
-					newimage.setMask(nx, ny, true);
+					newimage.pixels[o] = 0;
 				}
 				
-				
-				if (masked>0.75*total)
-					newimage.setMask(nx, ny, true);
-				else
-					newimage.setMask(nx, ny, false);
+				// masked if more than 75% of the window is masked
+				newimage.mask[o] = (byte)((4*masked>3*total)?1:0);
 			}
 		}
-		
-		return newimage;
 	}
 	
 	
-	// return an upscaled image
+	// return an upscaled image (bilinear interpolation)
 	public MaskedImage upscale(int newW,int newH) {
-		MaskedImage newimage = new MaskedImage(newW, newH);
-		newimage.image = resize(this.image, newW, newH);
-		return newimage;
+		return upscale(newW, newH, null);
+	}
+	
+	// upscale this image into 'out' (which must be newW x newH), or into a new image if out is null.
+	// The mask of the result is cleared.
+	public MaskedImage upscale(int newW, int newH, MaskedImage out) {
+		if (out==null) {
+			out = new MaskedImage(newW, newH);
+		} else {
+			if (out.W!=newW || out.H!=newH) throw new IllegalArgumentException("output size "+out.W+"x"+out.H+" is not "+newW+"x"+newH);
+			Arrays.fill(out.mask, (byte)0);
+		}
+		upscale(out.pixels, newW, newH, 0, newH);
+		return out;
+	}
+	
+	// return the rows [y0,y1) of this image upscaled to newW x newH, same values as upscale() 
+	// (used when the upscaled image is too large to be built at once)
+	MaskedImage upscaleRows(int newW, int newH, int y0, int y1) {
+		MaskedImage image = new MaskedImage(newW, y1-y0);
+		upscale(image.pixels, newW, newH, y0, y1);
+		return image;
+	}
+	
+	// bilinear upscale to newW x newH of the rows [y0,y1), written from the row y0 in out.
+	private void upscale(int[] out, int newW, int newH, int y0, int y1) {
+		if (newW==2*W && newH==2*H) 
+			upscale2x(out, y0, y1);
+		else
+			bilinear(out, newW, newH, y0, y1);
+	}
+	
+	// general case of upscale(). Fixed point : the sample positions have 8 bits of fraction, the pixel centers are aligned
+	void bilinear(int[] out, int newW, int newH, int y0, int y1) {
+		int maxX = (W-1)<<8, maxY = (H-1)<<8;
+		
+		// the sample position of the column x is (2x+1)*W*256/(2*newW) - 128 : step the quotient and remainder
+		long den = 2L*newW, step = 2L*W<<8;
+		int qstep = (int)(step/den), rstep = (int)(step%den);
+		
+		for(int y=y0, o=0;y<y1;y++) {
+			int fy = (int)(((2L*y+1)*H<<8)/(2*newH)) - 128;
+			fy = Math.max(0, Math.min(maxY, fy));
+			int ya = fy>>8, wy = fy&0xFF;
+			int rowa = ya*W, rowb = Math.min(H-1, ya+1)*W;
+			
+			long num = (long)W<<8;
+			int q = (int)(num/den), r = (int)(num%den);
+			for(int x=0;x<newW;x++,o++) {
+				int fx = Math.max(0, Math.min(maxX, q-128));
+				q += qstep; r += rstep;
+				if (r>=den) {q++; r-=den;}
+				
+				int xa = fx>>8, wx = fx&0xFF, xb = Math.min(W-1, xa+1);
+				int p00 = pixels[rowa+xa], p01 = pixels[rowa+xb], p10 = pixels[rowb+xa], p11 = pixels[rowb+xb];
+				int wx0 = 256-wx, wy0 = 256-wy;
+				
+				int top    = ((p00>>16)&0xFF)*wx0 + ((p01>>16)&0xFF)*wx;
+				int bottom = ((p10>>16)&0xFF)*wx0 + ((p11>>16)&0xFF)*wx;
+				int red    = (top*wy0 + bottom*wy + 32768)>>16;
+				top    = ((p00>>8)&0xFF)*wx0 + ((p01>>8)&0xFF)*wx;
+				bottom = ((p10>>8)&0xFF)*wx0 + ((p11>>8)&0xFF)*wx;
+				int green  = (top*wy0 + bottom*wy + 32768)>>16;
+				top    = (p00&0xFF)*wx0 + (p01&0xFF)*wx;
+				bottom = (p10&0xFF)*wx0 + (p11&0xFF)*wx;
+				int blue   = (top*wy0 + bottom*wy + 32768)>>16;
+				
+				out[o] = (red<<16) | (green<<8) | blue;
+			}
+		}
+	}
+
+	// exact 2x upscale : the bilinear weights are 1/4 and 3/4 (same values as the general case)
+	private void upscale2x(int[] out, int y0, int y1) {
+		for(int y=y0, o=0;y<y1;y++) {
+			// near row (weight 3/4) and far row (weight 1/4)
+			int near = y/2, far = (y%2==0) ? Math.max(0, near-1) : Math.min(H-1, near+1);
+			int rowa = far*W, rowb = near*W;
+			for(int k=0;k<W;k++) {
+				int km = Math.max(0, k-1), kp = Math.min(W-1, k+1);
+				int a = pixels[rowa+k], b = pixels[rowb+k];
+				out[o++] = blend(pixels[rowa+km], a, pixels[rowb+km], b);
+				out[o++] = blend(pixels[rowa+kp], a, pixels[rowb+kp], b);
+			}
+		}
+	}
+	
+	// (p + 3q + 3r + 9s)/16 for each channel, red and blue are computed together
+	private static int blend(int p, int q, int r, int s) {
+		int rb = (p&0xFF00FF) + 3*((q&0xFF00FF)+(r&0xFF00FF)) + 9*(s&0xFF00FF) + 0x80008;
+		int g  = (p&0xFF00) + 3*((q&0xFF00)+(r&0xFF00)) + 9*(s&0xFF00) + 0x800;
+		return ((rb>>4)&0xFF00FF) | ((g>>4)&0xFF00);
 	}
 
 }
@@ -1,6 +1,14 @@
 package com.developpez.xphilipp.patchmatch;
 
-import java.util.Random;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Nearest-Neighbor Field (see PatchMatch algorithm) 
@@ -17,10 +25,61 @@ public class NNF {
 	int S;
 
 	// Nearest-Neighbor Field 1 pixel = { x_target, y_target, distance_scaled } 
-	int[][][] field;
+	// stored row-major in a flat array : pixel (x,y) starts at index 3*(y*input.W+x)
+	int[] field;
 	
-	// random generator
-	Random random = new Random(0);
+	// counter-based random numbers : the numbers drawn for a link only depend on the seed, on the stream 
+	// (one per initialization and per half pass) and on the link, not on the order of the visits. 
+	// So the result is the same for any number of threads
+	long seed = 0;
+	long streams = 0;
+	
+	// region of the input where the links are computed (null = whole input)
+	Rectangle roi;
+	
+	// worker pool for the parallel minimization (null = single thread)
+	ForkJoinPool pool;
+	
+	// tile size of the parallel minimization
+	static final int TILE = 32;
+	
+	// active set : after a pass, only revisit the links which improved and their neighbors
+	boolean activeSet = false;
+	
+	// links to visit during the current pass (all of them if allActive), links improved during the current pass
+	// (kept for the next calls of minimize)
+	byte[] active, changed;
+	boolean allActive = true;
+	
+	// statistics of the last pass : number of links to visit, number of improvements
+	int activeCount, improvedCount;
+	
+	// progress and metrics (null = none), pyramid level of this field (for the listener)
+	InpaintListener listener;
+	int level;
+	
+	// number of patch distances computed (only counted when there is a listener)
+	final LongAdder distances = new LongAdder();
+	
+	// set by cancel(), checked before each pass
+	volatile boolean cancelled;
+	
+	// adaptive passes : stop when a pass improves the energy by less than this ratio (0 = never), after minPasses
+	double tolerance = 0;
+	int minPasses = 1;
+	
+	// no more pass after this time (System.nanoTime(), 0 = none), the first pass is always done
+	long deadline = 0;
+	
+	// unscaled distance of the links (see MaskedImage.ssd) visited by the current minimize() : a candidate 
+	// propagated from such a neighbor is its distance minus the column/row which leaves the patch plus the one
+	// which enters, instead of a whole patch. ssd[p] is the distance of the current link p, -1 if not computed yet.
+	// Allocated by minimize() and released when it returns (the images change between two calls). Only used
+	// from a radius of SLIDING_MIN_S (below, a row costs nearly a patch) and when the distances fit in an int
+	static final int SLIDING_MIN_S = 3;
+	boolean slidingWindow = true;
+	int[] ssd;
+	boolean sliding = false;
 
 	// constructor
 	public NNF(MaskedImage input, MaskedImage output, int patchsize) {
@@ -29,53 +88,191 @@ public class NNF {
 		this.S = patchsize;	
 	}
 	
+	// only compute (and minimize) the links of the given region of the input, null for the whole input
+	public void setRegionOfInterest(Rectangle roi) {
+		this.roi = (roi==null) ? null : roi.intersection(new Rectangle(0, 0, input.W, input.H));
+	}
+	
+	// enable the active set scheduling of the passes
+	public void setActiveSet(boolean enabled) {
+		this.activeSet = enabled;
+	}
+	
+	// stop minimize() when a pass improves the energy by less than the ratio 'tolerance' (0 = never),
+	// once minPasses passes are done
+	public void setTolerance(double tolerance, int minPasses) {
+		this.tolerance = tolerance;
+		this.minPasses = minPasses;
+	}
+	
+	// stop the running minimize() before its next pass : it throws a CancellationException
+	public void cancel() {
+		cancelled = true;
+	}
+	
+	// number of links to visit during the last pass
+	public int getActiveCount() {
+		return activeCount;
+	}
+	
+	// number of link improvements during the last pass
+	public int getImprovedCount() {
+		return improvedCount;
+	}
+	
 	// initialize field with random values
 	public void randomize() {
 		// field
-		this.field = new int[input.W][input.H][3];
-		
-		for(int y=0;y<input.H;y++) {
-			for(int x=0;x<input.W;x++) {
-				field[x][y][0] = random.nextInt(output.W);  
-				field[x][y][1] = random.nextInt(output.H);
-				field[x][y][2] = MaskedImage.DSCALE;
-			}
-		}
+		this.field = new int[3*input.W*input.H];
+		randomize(new Rectangle(0, 0, input.W, input.H));
 		initialize();
 	}
 	
 	// initialize field from an existing (possibily smaller) NNF
 	public void initialize(NNF nnf) {
 		// field
-		this.field = new int[input.W][input.H][3];
+		this.field = new int[3*input.W*input.H];
+		upscale(nnf, new Rectangle(0, 0, input.W, input.H));
+		initialize();
+	}
+	
+	// initialize field from the field of a previous inpainting (same size) : the links of the region 
+	// of interest are set from the smaller NNF (or randomly if null), the others are kept
+	void initialize(NNF previous, NNF nnf) {
+		this.field = previous.field.clone();
+		Rectangle r = (roi!=null) ? roi : new Rectangle(0, 0, input.W, input.H);
+		if (nnf!=null) upscale(nnf, r); else randomize(r);
+		initialize();
+	}
+	
+	// set the seed of the random numbers
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+	
+	// initialize field from the smaller NNF (or randomly if null), and from the field of the previous frame 
+	// of a video (same size) : each link of the region of interest keeps the better of the two
+	void initializeTemporal(NNF previous, NNF nnf) {
+		this.field = new int[3*input.W*input.H];
+		Rectangle r = new Rectangle(0, 0, input.W, input.H);
+		if (nnf!=null) upscale(nnf, r); else randomize(r);
+		initializeDistances(previous);
+	}
+	
+	// replace the links of the hole (the pixels masked in the output) of the region of interest by the
+	// approximate nearest neighbor from the index of the output patches, when it is better.
+	// Return the number of links replaced
+	int seedFromIndex(final PatchIndex index) {
+		final Rectangle r = (roi!=null) ? roi : new Rectangle(0, 0, input.W, input.H);
+		if (index.size()==0 || r.isEmpty()) return 0;
 		
+		// each link is independent
+		final AtomicInteger seeded = new AtomicInteger();
+		RowBands.forEach(pool, r.y, r.y+r.height, new RowBands.Band() {
+			@Override
+			public void run(int band, int y0, int y1) {
+				seeded.addAndGet(seedFromIndex(index, r, y0, y1));
+			}
+		});
+		return seeded.get();
+	}
+	
+	private int seedFromIndex(PatchIndex index, Rectangle r, int y0, int y1) {
+		float[] descriptor = index.newDescriptor(), query = index.newQuery();
+		int count=0;
+		for(int y=y0;y<y1;y++) {
+			for(int x=r.x;x<r.x+r.width;x++) {
+				int i = 3*(y*input.W+x);
+				if (field[i+2]==0) continue;
+				
+				// outside the hole, the links are found by propagation from the same place
+				if (x>=output.W || y>=output.H || output.mask[y*output.W+x]==0) continue;
+				int p = index.query(input, x, y, descriptor, query);
+				int xp = p%output.W, yp = p/output.W;
+				int d = distance(x,y, xp,yp, field[i+2]);
+				if (d<field[i+2]) {
+					field[i  ] = xp;
+					field[i+1] = yp;
+					field[i+2] = d;
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+	
+	// set the links of the region r with random values
+	private void randomize(Rectangle r) {
+		long stream = nextStream();
+		for(int y=r.y;y<r.y+r.height;y++) {
+			for(int x=r.x;x<r.x+r.width;x++) {
+				int i = 3*(y*input.W+x);
+				long key = linkKey(stream, y*input.W+x);
+				field[i  ] = random(key, 0, output.W);  
+				field[i+1] = random(key, 1, output.H);
+				field[i+2] = MaskedImage.DSCALE;
+			}
+		}
+	}
+	
+	// set the links of the region r from an existing (possibily smaller) NNF
+	private void upscale(NNF nnf, Rectangle r) {
 		int fx = input.W/nnf.input.W;
 		int fy = input.H/nnf.input.H;
 		//System.out.println("nnf upscale by "+fx+"x"+fy+" : "+nnf.input.W+","+nnf.input.H+" -> "+input.W+","+input.H);
-		for(int y=0;y<input.H;y++) {
-			for(int x=0;x<input.W;x++) {
+		for(int y=r.y;y<r.y+r.height;y++) {
+			for(int x=r.x;x<r.x+r.width;x++) {
 				int xlow = Math.min(x/fx, nnf.input.W-1);
 				int ylow = Math.min(y/fy, nnf.input.H-1);
-				field[x][y][0] = nnf.field[xlow][ylow][0]*fx;  
-				field[x][y][1] = nnf.field[xlow][ylow][1]*fy;
-				field[x][y][2] = MaskedImage.DSCALE;
+				int i = 3*(y*input.W+x), ilow = 3*(ylow*nnf.input.W+xlow);
+				field[i  ] = nnf.field[ilow  ]*fx;  
+				field[i+1] = nnf.field[ilow+1]*fy;
+				field[i+2] = MaskedImage.DSCALE;
 			}
 		}
-		initialize();
 	}
 	
 	// compute initial value of the distance term
 	private void initialize() {
-		for(int y=0;y<input.H;y++) {
-			for(int x=0;x<input.W;x++) {
-				field[x][y][2] = distance(x,y,  field[x][y][0],field[x][y][1]);
+		initializeDistances(null);
+	}
+	
+	// same, the links of the previous field (null = none) replace the initial links when they are better
+	private void initializeDistances(final NNF previous) {
+		final Rectangle r = (roi!=null) ? roi : new Rectangle(0, 0, input.W, input.H);
+		final long stream = nextStream();
+		
+		// each link is independent
+		RowBands.forEach(pool, r.y, r.y+r.height, new RowBands.Band() {
+			@Override
+			public void run(int band, int y0, int y1) {
+				initialize(r, y0, y1, stream, previous);
+			}
+		});
+	}
+	
+	private void initialize(Rectangle r, int y0, int y1, long stream, NNF previous) {
+		for(int y=y0;y<y1;y++) {
+			for(int x=r.x;x<r.x+r.width;x++) {
+				int i = 3*(y*input.W+x);
+				field[i+2] = distance(x,y,  field[i],field[i+1]);
+				
+				if (previous!=null) {
+					int d = distance(x,y, previous.field[i],previous.field[i+1], field[i+2]);
+					if (d<field[i+2]) {
+						field[i  ] = previous.field[i  ];
+						field[i+1] = previous.field[i+1];
+						field[i+2] = d;
+					}
+				}
 
 				// if the distance is INFINITY (all pixels masked ?), try to find a better link
 				int iter=0, maxretry=20;
-				while( field[x][y][2] == MaskedImage.DSCALE && iter<maxretry) {
-					field[x][y][0] = random.nextInt(output.W);
-					field[x][y][1] = random.nextInt(output.H);
-					field[x][y][2] = distance(x,y,  field[x][y][0],field[x][y][1]);
+				long key = linkKey(stream, y*input.W+x);
+				while( field[i+2] == MaskedImage.DSCALE && iter<maxretry) {
+					field[i  ] = random(key, 2*iter  , output.W);
+					field[i+1] = random(key, 2*iter+1, output.H);
+					field[i+2] = distance(x,y,  field[i],field[i+1]);
 					iter++;
 				}
 			}
@@ -83,79 +280,343 @@ public class NNF {
 	}
 	
 	// multi-pass NN-field minimization (see "PatchMatch" - page 4)
-	public void minimize(int pass) {
+	// return the number of passes done
+	public int minimize(int pass) {
 		
 		int min_x=0, min_y=0, max_x=input.W-1, max_y=input.H-1;
+		if (roi!=null) {
+			if (roi.isEmpty()) return 0;
+			min_x=roi.x; min_y=roi.y; max_x=roi.x+roi.width-1; max_y=roi.y+roi.height-1;
+		}
+		
+		boolean parallel = (pool!=null && pool.getParallelism()>1);
+		
+		// the first pass visits all the links
+		allActive = true;
+		if (activeSet) {
+			if (changed==null) changed = new byte[input.W*input.H];
+			else Arrays.fill(changed, (byte)0);
+		}
+		activeCount = (max_x-min_x+1)*(max_y-min_y+1);
+		
+		// no distance computed yet in the region of interest and around it (the propagated neighbors)
+		sliding = slidingWindow && S>=SLIDING_MIN_S && (2*S+1)*(2*S+1)*(long)DistanceKernel.SSDMAX<=Integer.MAX_VALUE;
+		if (sliding) {
+			ssd = new int[input.W*input.H];
+			int x0=Math.max(0,min_x-1), x1=Math.min(input.W-1,max_x+1);
+			for(int y=Math.max(0,min_y-1); y<=Math.min(input.H-1,max_y+1); y++)
+				Arrays.fill(ssd, y*input.W+x0, y*input.W+x1+1, -1);
+		}
 		
 		// multi-pass minimization
-		for(int i=0;i<pass;i++) {
-			System.out.print(".");
+		int done=0;
+		try {
+			done = minimizePasses(pass, parallel, min_x, min_y, max_x, max_y);
+		} finally {
+			sliding = false;
+			ssd = null;
+		}
+		allActive = true;
+		return done;
+	}
+	
+	private int minimizePasses(int pass, boolean parallel, int min_x, int min_y, int max_x, int max_y) {
+		int done=0;
+		long energy = (tolerance>0) ? getEnergy() : 0;
+		while(done<pass) {
+			if (cancelled) throw new CancellationException();
+			distances.reset();
+			long forward = nextStream(), backward = nextStream();
+			if (parallel)
+				improvedCount = minimizeParallel(forward, backward, min_x, min_y, max_x, max_y);
+			else
+				improvedCount = minimizePass(forward, backward, min_x, min_y, max_x, max_y);
+			done++;
+			
+			if (listener!=null) 
+				listener.nnfPassCompleted(level, done, getEnergy(), distances.sum(), activeCount, improvedCount);
 			
-			// scanline order
-			for(int y=min_y;y<max_y;y++)
-				for(int x=min_x;x<=max_x;x++)
-					if (field[x][y][2]>0) minimizeLink(x,y,+1);
+			if (activeSet) {
+				activeCount = updateActiveSet(min_x, min_y, max_x, max_y);
+				if (activeCount==0) break;
+			}
+			
+			// adaptive passes : the energy no longer improves enough
+			if (tolerance>0) {
+				long e = getEnergy();
+				boolean converged = done>=minPasses && energy-e<=tolerance*energy;
+				energy = e;
+				if (converged) break;
+			}
+			if (deadline!=0 && System.nanoTime()-deadline>0) break;
+		}
+		return done;
+	}
+	
+	// sum of the distances of the links (in the region of interest)
+	public long getEnergy() {
+		Rectangle r = (roi!=null) ? roi : new Rectangle(0, 0, input.W, input.H);
+		long energy=0;
+		for(int y=r.y;y<r.y+r.height;y++)
+			for(int x=r.x;x<r.x+r.width;x++)
+				energy += field[3*(y*input.W+x)+2];
+		return energy;
+	}
+	
+	// one pass of minimization, return the number of improvements
+	private int minimizePass(long forward, long backward, int min_x, int min_y, int max_x, int max_y) {
+		int improved=0;
+		
+		// scanline order
+		for(int y=min_y;y<max_y;y++)
+			for(int x=min_x;x<=max_x;x++)
+				if (visit(x,y,+1,forward)) improved++;
 
-			// reverse scanline order
-			for(int y=max_y;y>=min_y;y--)
-				for(int x=max_x;x>=min_x;x--)
-					if (field[x][y][2]>0) minimizeLink(x,y,-1);
+		// reverse scanline order
+		for(int y=max_y;y>=min_y;y--)
+			for(int x=max_x;x>=min_x;x--)
+				if (visit(x,y,-1,backward)) improved++;
+		
+		return improved;
+	}
+	
+	// one pass of minimization on the worker pool, using a tile wavefront :
+	// a link only propagates from its left/up (or right/down) neighbors, so all the tiles 
+	// of an anti-diagonal can be processed at the same time once the previous diagonal is done
+	private int minimizeParallel(long forward, long backward, int min_x, int min_y, int max_x, int max_y) {
+		int tilesX = (max_x-min_x+TILE)/TILE, tilesY = (max_y-min_y+TILE)/TILE;
+		int diagonals = tilesX+tilesY-1;
+		AtomicInteger improved = new AtomicInteger();
+		
+		// scanline order
+		for(int d=0;d<diagonals;d++)
+			pool.invoke(new Wavefront(forward, d, +1, tilesX, tilesY, min_x, min_y, max_x, max_y, improved));
+		
+		// reverse scanline order
+		for(int d=diagonals-1;d>=0;d--)
+			pool.invoke(new Wavefront(backward, d, -1, tilesX, tilesY, min_x, min_y, max_x, max_y, improved));
+		
+		return improved.get();
+	}
+	
+	// the next pass visits the improved links and their neighbors (which can propagate from them)
+	// return the number of links to visit
+	private int updateActiveSet(int min_x, int min_y, int max_x, int max_y) {
+		int W=input.W, H=input.H, count=0;
+		if (active==null) active = new byte[W*H];
+		allActive = false;
+		for(int y=min_y;y<=max_y;y++) {
+			for(int x=min_x;x<=max_x;x++) {
+				int p=y*W+x;
+				int a = changed[p];
+				if (x>0) a|=changed[p-1];
+				if (x<W-1) a|=changed[p+1];
+				if (y>0) a|=changed[p-W];
+				if (y<H-1) a|=changed[p+W];
+				active[p]=(byte)a;
+				count+=a;
+			}
+		}
+		Arrays.fill(changed, (byte)0);
+		return count;
+	}
+	
+	// visit a link during a pass, return true if the link has been improved
+	private boolean visit(int x, int y, int dir, long stream) {
+		int p=y*input.W+x;
+		if (!allActive && active[p]==0) return false;
+		if (field[3*p+2]==0) return false;
+		if (!minimizeLink(x,y,dir,stream)) return false;
+		if (activeSet) changed[p]=1;
+		return true;
+	}
+	
+	// process all the tiles of one anti-diagonal
+	private class Wavefront extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		final long stream;
+		final int diagonal, dir, tilesX, tilesY, min_x, min_y, max_x, max_y;
+		final AtomicInteger improved;
+		
+		Wavefront(long stream, int diagonal, int dir, int tilesX, int tilesY, int min_x, int min_y, int max_x, int max_y, AtomicInteger improved) {
+			this.stream=stream; this.diagonal=diagonal; this.dir=dir; 
+			this.tilesX=tilesX; this.tilesY=tilesY;
+			this.min_x=min_x; this.min_y=min_y; this.max_x=max_x; this.max_y=max_y;
+			this.improved=improved;
+		}
+		
+		@Override
+		protected void compute() {
+			List<RecursiveAction> tiles = new ArrayList<RecursiveAction>();
+			for(int ty=Math.max(0, diagonal-tilesX+1);ty<=Math.min(diagonal, tilesY-1);ty++) {
+				final int tx = diagonal-ty, tyf = ty;
+				tiles.add(new RecursiveAction() {
+					@Override
+					protected void compute() {
+						minimizeTile(tx, tyf);
+					}
+				});
+			}
+			invokeAll(tiles);
+		}
+		
+		private void minimizeTile(int tx, int ty) {
+			int x0=min_x+tx*TILE, x1=Math.min(max_x, x0+TILE-1);
+			int y0=min_y+ty*TILE, y1=Math.min(max_y, y0+TILE-1);
+			int count=0;
+			if (dir>0) {
+				// the last row is not processed by the scanline pass
+				for(int y=y0;y<=y1 && y<max_y;y++)
+					for(int x=x0;x<=x1;x++)
+						if (visit(x,y,+1,stream)) count++;
+			} else {
+				for(int y=y1;y>=y0;y--)
+					for(int x=x1;x>=x0;x--)
+						if (visit(x,y,-1,stream)) count++;
+			}
+			improved.addAndGet(count);
 		}
 	}
 
-	// minimize a single link (see "PatchMatch" - page 4)
-	public void minimizeLink(int x, int y, int dir) {
+	// minimize a single link (see "PatchMatch" - page 4), return true if the link has been improved
+	public boolean minimizeLink(int x, int y, int dir) {
+		return minimizeLink(x, y, dir, nextStream());
+	}
+	
+	private boolean minimizeLink(int x, int y, int dir, long stream) {
 		int xp,yp,dp;
+		int p = y*input.W+x, i = 3*p;
+		int d0 = field[i+2];
+		long r;
 		
 		//Propagation Left/Right
 		if (x-dir>0 && x-dir<input.W) {
-			xp = field[x-dir][y][0]+dir;
-			yp = field[x-dir][y][1];
-			dp = distance(x,y, xp,yp);
-			if (dp<field[x][y][2]) {
-				field[x][y][0] = xp;
-				field[x][y][1] = yp;
-				field[x][y][2] = dp;
+			int n = i-3*dir;
+			xp = field[n]+dir;
+			yp = field[n+1];
+			if (sliding && ssd[p-dir]>=0) {
+				// the patch of the neighbor shifted by one column (the entering column is only 
+				// computed if the remaining distance is lower than the bound)
+				if (listener!=null) distances.increment();
+				r = ssd[p-dir] - MaskedImage.columnSSD(input,x-dir,y, output,field[n],yp, S, -dir*S);
+				if (MaskedImage.scale(r, S)<field[i+2]) r += MaskedImage.columnSSD(input,x,y, output,xp,yp, S, dir*S);
+			} else {
+				r = ssd(x,y, xp,yp, field[i+2]);
 			}
+			dp = MaskedImage.scale(r, S);
+			if (dp<field[i+2]) setLink(p, xp, yp, dp, r);
 		}
 		
 		//Propagation Up/Down
 		if (y-dir>0 && y-dir<input.H) {
-			xp = field[x][y-dir][0];
-			yp = field[x][y-dir][1]+dir;
-			dp = distance(x,y, xp,yp);
-			if (dp<field[x][y][2]) {
-				field[x][y][0] = xp;
-				field[x][y][1] = yp;
-				field[x][y][2] = dp;
+			int n = i-3*dir*input.W;
+			xp = field[n];
+			yp = field[n+1]+dir;
+			if (sliding && ssd[p-dir*input.W]>=0) {
+				// the patch of the neighbor shifted by one row
+				if (listener!=null) distances.increment();
+				r = ssd[p-dir*input.W] - MaskedImage.rowSSD(input,x,y-dir, output,xp,field[n+1], S, -dir*S);
+				if (MaskedImage.scale(r, S)<field[i+2]) r += MaskedImage.rowSSD(input,x,y, output,xp,yp, S, dir*S);
+			} else {
+				r = ssd(x,y, xp,yp, field[i+2]);
 			}
+			dp = MaskedImage.scale(r, S);
+			if (dp<field[i+2]) setLink(p, xp, yp, dp, r);
 		}
 		
 		//Random search
-		int wi=output.W, xpi=field[x][y][0], ypi=field[x][y][1];
+		int wi=output.W, xpi=field[i], ypi=field[i+1], k=0;
+		long key = linkKey(stream, p);
 		while(wi>0) {
-			xp = xpi + random.nextInt(2*wi)-wi;
-			yp = ypi + random.nextInt(2*wi)-wi;
+			xp = xpi + random(key, k++, 2*wi)-wi;
+			yp = ypi + random(key, k++, 2*wi)-wi;
 			xp = Math.max(0, Math.min(output.W-1, xp ));
 			yp = Math.max(0, Math.min(output.H-1, yp ));
 			
-			dp = distance(x,y, xp,yp);
-			if (dp<field[x][y][2]) {
-				field[x][y][0] = xp;
-				field[x][y][1] = yp;
-				field[x][y][2] = dp;
-			}
+			r = ssd(x,y, xp,yp, field[i+2]);
+			dp = MaskedImage.scale(r, S);
+			if (dp<field[i+2]) setLink(p, xp, yp, dp, r);
 			wi/=2;
 		}
+		
+		// the distance of a link which did not improve is computed once, for the propagations from it
+		if (sliding && ssd[p]<0) {
+			ssd[p] = (int)ssd(x,y, field[i],field[i+1], Integer.MAX_VALUE);
+		}
+		return field[i+2]<d0;
+	}
+	
+	// set the link of the target pixel p, r = unscaled distance
+	private void setLink(int p, int xp, int yp, int d, long r) {
+		field[3*p  ] = xp;
+		field[3*p+1] = yp;
+		field[3*p+2] = d;
+		if (sliding) {
+			ssd[p] = (int)r;
+		}
 	}
 
+	// key of a new random stream
+	private long nextStream() {
+		return mix(seed + GAMMA*(++streams));
+	}
+	
+	// key of the random numbers of the link p in a stream
+	private static long linkKey(long stream, int p) {
+		return mix(stream ^ GAMMA*p);
+	}
+	
+	// k-th random number of a link, in [0,bound)
+	private static int random(long key, int k, int bound) {
+		return (int)(((mix(key+GAMMA*k)>>>32)*bound)>>>32);
+	}
+	
+	// SplitMix64 : golden ratio increment and finalizer
+	private static final long GAMMA = 0x9E3779B97F4A7C15L;
+	
+	private static long mix(long z) {
+		z = (z^(z>>>30))*0xBF58476D1CE4E5B9L;
+		z = (z^(z>>>27))*0x94D049BB133111EBL;
+		return z^(z>>>31);
+	}
+	
 	// compute distance between two patch 
 	public int distance(int x,int y, int xp,int yp) {
+		if (listener!=null) distances.increment();
 		return MaskedImage.distance(input,x,y, output,xp,yp, S);
 	}
 	
-	public int[][][] getField() {
-		return field;
+	// compute distance between two patch, only if it is lower than the bound (see MaskedImage.distance)
+	public int distance(int x,int y, int xp,int yp, int bound) {
+		if (listener!=null) distances.increment();
+		return MaskedImage.distance(input,x,y, output,xp,yp, S, bound);
+	}
+	
+	// same, unscaled (see MaskedImage.ssd)
+	private long ssd(int x,int y, int xp,int yp, int bound) {
+		if (listener!=null) distances.increment();
+		return MaskedImage.ssd(input,x,y, output,xp,yp, S, bound);
+	}
+	
+	// size of the field, in bytes
+	public long getMemorySize() {
+		return ((field==null) ? 0 : 4L*field.length) + ((ssd==null) ? 0 : 4L*ssd.length);
+	}
+	
+	// x coordinate of the source patch linked to the target pixel (x,y)
+	public int getLinkX(int x, int y) {
+		return field[3*(y*input.W+x)];
+	}
+	
+	// y coordinate of the source patch linked to the target pixel (x,y)
+	public int getLinkY(int x, int y) {
+		return field[3*(y*input.W+x)+1];
+	}
+	
+	// scaled distance of the link of the target pixel (x,y)
+	public int getLinkDistance(int x, int y) {
+		return field[3*(y*input.W+x)+2];
 	}
 	
 }
@@ -0,0 +1,258 @@
+package com.developpez.xphilipp.patchmatch;
+
+/**
+ * Approximate nearest neighbor index of the patches of a source image
+ *
+ * Only the patches which are inside the image and without masked pixel are indexed, on a grid 
+ * whose step keeps about INDEXED patches (the links are refined by the NNF passes). Each patch
+ * (3*(2S+1)^2 channel values) is projected on the first principal components of the patches, and
+ * the projections are stored in a kd-tree. A query visits the nearest cells first, and stops after
+ * a fixed number of patches : the result is a good initial guess for the NNF, not the exact neighbor.
+ *
+ */
+final class PatchIndex {
+
+	// number of principal components, patches sampled to compute them, power iterations
+	static final int COMPONENTS = 8;
+	private static final int SAMPLES = 1024;
+	private static final int INDEXED = 4096;
+	private static final int ITERATIONS = 30;
+
+	// patches in a leaf of the kd-tree, patches compared by a query
+	private static final int LEAF = 8;
+	private static final int BUDGET = 64;
+
+	private final MaskedImage source;
+	private final int S, K;
+
+	// mean patch and principal components (K vectors of the patch dimension)
+	private final float[] mean;
+	private final float[][] basis;
+
+	// indexed patches : position (y*W+x) and projection (K values each), in kd-tree order
+	private final int[] positions;
+	private final float[] points;
+
+	// kd-tree : the node of the range [lo,hi) is the patch at (lo+hi)/2, split on the dimension split[(lo+hi)/2]
+	private final byte[] split;
+
+	PatchIndex(MaskedImage source, int S) {
+		this.source = source;
+		this.S = S;
+		int dim = 3*(2*S+1)*(2*S+1);
+		this.K = Math.min(COMPONENTS, dim);
+
+		// valid patches : inside the image, no masked pixel
+		int inside = Math.max(0, (source.W-2*S)*(source.H-2*S));
+		int step = Math.max(1, (int)Math.ceil(Math.sqrt((double)inside/INDEXED)));
+		int count=0;
+		int[] valid = new int[inside];
+		for(int y=S;y<source.H-S;y+=step)
+			for(int x=S;x<source.W-S;x+=step)
+				if (isValid(x, y)) valid[count++] = y*source.W+x;
+
+		this.mean = new float[dim];
+		this.basis = new float[K][dim];
+		this.positions = new int[count];
+		this.points = new float[count*K];
+		this.split = new byte[count];
+		if (count==0) return;
+
+		principalComponents(valid, count, dim);
+
+		// project the patches
+		float[] descriptor = new float[dim];
+		for(int k=0;k<count;k++) {
+			positions[k] = valid[k];
+			descriptor(source, valid[k]%source.W, valid[k]/source.W, descriptor);
+			project(descriptor, points, k*K);
+		}
+		build(0, count);
+	}
+
+	// number of indexed patches
+	int size() {
+		return positions.length;
+	}
+
+	// approximate nearest source patch of the patch of 'image' centered at (x,y) : position y*W+x in the source,
+	// or -1 if the index is empty. descriptor/query are scratch arrays (see newDescriptor/newQuery)
+	int query(MaskedImage image, int x, int y, float[] descriptor, float[] query) {
+		if (positions.length==0) return -1;
+		descriptor(image, x, y, descriptor);
+		project(descriptor, query, 0);
+		Search search = new Search(query);
+		search.visit(0, positions.length);
+		return positions[search.best];
+	}
+
+	float[] newDescriptor() {
+		return new float[mean.length];
+	}
+
+	float[] newQuery() {
+		return new float[K];
+	}
+
+	private boolean isValid(int x, int y) {
+		for(int dy=-S;dy<=S;dy++) {
+			int i = (y+dy)*source.W+x;
+			for(int dx=-S;dx<=S;dx++)
+				if (source.mask[i+dx]!=0) return false;
+		}
+		return true;
+	}
+
+	// channel values of the patch centered at (x,y), the pixels outside the image are clamped to the border
+	private void descriptor(MaskedImage image, int x, int y, float[] descriptor) {
+		int k=0;
+		for(int dy=-S;dy<=S;dy++) {
+			int yk = Math.max(0, Math.min(image.H-1, y+dy));
+			for(int dx=-S;dx<=S;dx++) {
+				int xk = Math.max(0, Math.min(image.W-1, x+dx));
+				int rgb = image.pixels[yk*image.W+xk];
+				descriptor[k++] = (rgb>>16)&0xFF;
+				descriptor[k++] = (rgb>>8)&0xFF;
+				descriptor[k++] = rgb&0xFF;
+			}
+		}
+	}
+
+	private void project(float[] descriptor, float[] out, int offset) {
+		for(int c=0;c<K;c++) {
+			float[] v = basis[c];
+			float p=0;
+			for(int i=0;i<descriptor.length;i++) p+=(descriptor[i]-mean[i])*v[i];
+			out[offset+c] = p;
+		}
+	}
+
+	// mean and first principal components of a sample of the valid patches : power iterations on the
+	// covariance matrix, each component is removed from the matrix once found (deflation)
+	private void principalComponents(int[] valid, int count, int dim) {
+		int samples = Math.min(SAMPLES, count);
+		float[][] data = new float[samples][dim];
+		for(int s=0;s<samples;s++) {
+			int p = valid[(int)((long)s*count/samples)];
+			descriptor(source, p%source.W, p/source.W, data[s]);
+			for(int i=0;i<dim;i++) mean[i]+=data[s][i];
+		}
+		for(int i=0;i<dim;i++) mean[i]/=samples;
+
+		double[][] cov = new double[dim][dim];
+		for(int s=0;s<samples;s++) {
+			float[] d = data[s];
+			for(int i=0;i<dim;i++) d[i]-=mean[i];
+			for(int i=0;i<dim;i++) {
+				double di = d[i];
+				for(int j=i;j<dim;j++) cov[i][j]+=di*d[j];
+			}
+		}
+		for(int i=0;i<dim;i++)
+			for(int j=i;j<dim;j++) cov[j][i] = cov[i][j];
+
+		double[] v = new double[dim], w = new double[dim];
+		for(int c=0;c<K;c++) {
+			// start from a vector which is not orthogonal to the main directions
+			for(int i=0;i<dim;i++) v[i] = 1+(i%(c+2));
+			double lambda=0;
+			for(int it=0;it<ITERATIONS;it++) {
+				for(int i=0;i<dim;i++) {
+					double sum=0;
+					for(int j=0;j<dim;j++) sum+=cov[i][j]*v[j];
+					w[i]=sum;
+				}
+				double norm=0;
+				for(int i=0;i<dim;i++) norm+=w[i]*w[i];
+				norm=Math.sqrt(norm);
+				if (norm==0) break;
+				for(int i=0;i<dim;i++) v[i]=w[i]/norm;
+				lambda=norm;
+			}
+			for(int i=0;i<dim;i++) basis[c][i] = (float)v[i];
+			for(int i=0;i<dim;i++)
+				for(int j=0;j<dim;j++) cov[i][j]-=lambda*v[i]*v[j];
+		}
+	}
+
+	// build the kd-tree of the range [lo,hi) : the median on the dimension of largest spread goes in the middle
+	private void build(int lo, int hi) {
+		if (hi-lo<=LEAF) return;
+		int dim=0; float spread=-1;
+		for(int c=0;c<K;c++) {
+			float min=Float.MAX_VALUE, max=-Float.MAX_VALUE;
+			for(int k=lo;k<hi;k++) {
+				float p = points[k*K+c];
+				if (p<min) min=p;
+				if (p>max) max=p;
+			}
+			if (max-min>spread) { spread=max-min; dim=c; }
+		}
+		int mid = (lo+hi)>>>1;
+		select(lo, hi-1, mid, dim);
+		split[mid] = (byte)dim;
+		build(lo, mid);
+		build(mid+1, hi);
+	}
+
+	// partial sort of [lo,hi] on the dimension : the k-th point in place, lower points before, higher after
+	private void select(int lo, int hi, int k, int dim) {
+		while(hi>lo) {
+			float pivot = points[((lo+hi)>>>1)*K+dim];
+			int i=lo, j=hi;
+			while(i<=j) {
+				while(points[i*K+dim]<pivot) i++;
+				while(points[j*K+dim]>pivot) j--;
+				if (i<=j) swap(i++, j--);
+			}
+			if (k<=j) hi=j;
+			else if (k>=i) lo=i;
+			else return;
+		}
+	}
+
+	private void swap(int a, int b) {
+		int p = positions[a]; positions[a] = positions[b]; positions[b] = p;
+		for(int c=0;c<K;c++) {
+			float t = points[a*K+c]; points[a*K+c] = points[b*K+c]; points[b*K+c] = t;
+		}
+	}
+
+	// nearest first search with a budget of compared patches
+	private class Search {
+		final float[] query;
+		int best = -1, budget = BUDGET;
+		float bestDistance = Float.MAX_VALUE;
+
+		Search(float[] query) {
+			this.query = query;
+		}
+
+		void visit(int lo, int hi) {
+			if (hi-lo<=LEAF) {
+				for(int k=lo;k<hi;k++) compare(k);
+				return;
+			}
+			int mid = (lo+hi)>>>1, dim = split[mid];
+			float diff = query[dim]-points[mid*K+dim];
+			compare(mid);
+			if (diff<0) {
+				visit(lo, mid);
+				if (budget>0 && diff*diff<bestDistance) visit(mid+1, hi);
+			} else {
+				visit(mid+1, hi);
+				if (budget>0 && diff*diff<bestDistance) visit(lo, mid);
+			}
+		}
+
+		private void compare(int k) {
+			budget--;
+			float d=0;
+			for(int c=0;c<K;c++) {
+				float t = query[c]-points[k*K+c];
+				d+=t*t;
+			}
+			if (d<bestDistance) { bestDistance=d; best=k; }
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package com.developpez.xphilipp.patchmatch;
+
+/**
+ * Read access to the pixels of a masked RGB image, in memory (MaskedImage) or on disk (TiledImage)
+ * 
+ */
+interface PixelSource {
+
+	int getWidth();
+	
+	int getHeight();
+	
+	// RGB value (0xRRGGBB) of the pixel, -1 if it is masked
+	int getMaskedRGB(int x, int y);
+}
@@ -0,0 +1,153 @@
+package com.developpez.xphilipp.patchmatch;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Cache of the image pyramids, shared by the inpaintings of the same image with different masks
+ *
+ * The pyramids are keyed by the content of the image (pixels only). When an image is inpainted again
+ * with another mask, only the pixels of the downsampled levels which depend on the modified part
+ * of the mask are recomputed. The least recently used pyramids are evicted above the memory cap.
+ *
+ * @see Inpaint#setPyramidCache(PyramidCache)
+ *
+ */
+public class PyramidCache {
+
+	// cached pyramid : the levels built for the last mask used with the image
+	private static class Entry {
+		final List<MaskedImage> levels;
+		final long size;
+
+		Entry(List<MaskedImage> levels) {
+			this.levels = levels;
+			long size = 0;
+			for(MaskedImage image : levels) size += image.getMemorySize();
+			this.size = size;
+		}
+	}
+
+	// key : content hash of the pixels and size of the image
+	private static class Key {
+		final int hash, W, H;
+
+		Key(MaskedImage image) {
+			this.hash = Arrays.hashCode(image.pixels);
+			this.W = image.W;
+			this.H = image.H;
+		}
+
+		@Override
+		public int hashCode() {
+			return (hash*31+W)*31+H;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key)o;
+			return k.hash==hash && k.W==W && k.H==H;
+		}
+	}
+
+	private final long maxSize;
+
+	// entries in access order (LRU first)
+	private final LinkedHashMap<Key,Entry> entries = new LinkedHashMap<Key,Entry>(16, 0.75f, true);
+	private long size;
+	private long hits, misses;
+
+	// maxSize = memory cap in bytes of the cached images
+	public PyramidCache(long maxSize) {
+		if (maxSize<0) throw new IllegalArgumentException("maxSize must be >= 0 : "+maxSize);
+		this.maxSize = maxSize;
+	}
+
+	// return the pyramid of the image (level 0 = image), with the same levels as Inpaint would build
+	// (the levels which are not cached are downsampled on the worker pool, null = single thread)
+	List<MaskedImage> getPyramid(MaskedImage image, int radius, ForkJoinPool pool) {
+		Key key = new Key(image);
+		List<MaskedImage> cached = null;
+		synchronized(this) {
+			Entry entry = entries.get(key);
+			// the hash may collide : check the pixels
+			if (entry!=null && Arrays.equals(entry.levels.get(0).pixels, image.pixels)) cached = entry.levels;
+			if (cached!=null) hits++; else misses++;
+		}
+
+		// region of the current level which differs from the cached level (null = same)
+		Rectangle dirty = null;
+		if (cached!=null) dirty = MaskedImage.getDifferenceBounds(cached.get(0), image);
+
+		List<MaskedImage> pyramid = new ArrayList<MaskedImage>();
+		pyramid.add(image);
+		MaskedImage source = image;
+		while(source.W>radius && source.H>radius) {
+			if (source.countMasked()==0) break;
+			int level = pyramid.size();
+			MaskedImage previous = (cached!=null && level<cached.size()) ? cached.get(level) : null;
+			if (previous==null) {
+				source = source.downsample(pool);
+			} else if (dirty==null) {
+				source = previous;
+			} else {
+				// recompute the pixels which depend on the dirty region of the larger level
+				dirty = dependents(dirty, previous.W, previous.H);
+				MaskedImage newimage = previous.copy();
+				MaskedImage.downsample(source, 0, source.H, newimage, dirty.x, dirty.x+dirty.width, dirty.y, dirty.y+dirty.height);
+				source = newimage;
+			}
+			pyramid.add(source);
+		}
+
+		put(key, new Entry(new ArrayList<MaskedImage>(pyramid)));
+		return pyramid;
+	}
+
+	private synchronized void put(Key key, Entry entry) {
+		Entry old = entries.remove(key);
+		if (old!=null) size -= old.size;
+		if (entry.size>maxSize) return;
+		entries.put(key, entry);
+		size += entry.size;
+
+		// evict the least recently used pyramids
+		for(Iterator<Entry> it = entries.values().iterator(); size>maxSize && it.hasNext(); ) {
+			size -= it.next().size;
+			it.remove();
+		}
+	}
+
+	// the pixels of the downsampled image (newW x newH) whose kernel overlaps the region r
+	// (the kernel of the pixel nx covers the pixels [2nx-2,2nx+3] of the larger image)
+	private static Rectangle dependents(Rectangle r, int newW, int newH) {
+		int x0 = Math.max(0, Math.floorDiv(r.x-3, 2)), x1 = Math.min(newW, (r.x+r.width+1)/2+1);
+		int y0 = Math.max(0, Math.floorDiv(r.y-3, 2)), y1 = Math.min(newH, (r.y+r.height+1)/2+1);
+		return new Rectangle(x0, y0, x1-x0, y1-y0);
+	}
+
+	// remove all the cached pyramids
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	// memory size (in bytes) of the cached images
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+}
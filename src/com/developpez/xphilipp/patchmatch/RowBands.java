@@ -0,0 +1,54 @@
+package com.developpez.xphilipp.patchmatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork/join over the rows of an image : the rows are split in bands, one task per band
+ * 
+ * Used by the work whose rows are independent (initialization and seeding of the NNF, downsampling, EM vote).
+ *
+ */
+final class RowBands {
+
+	private RowBands() {
+	}
+	
+	// body of a band of rows [y0,y1), band = index of the band
+	interface Band {
+		void run(int band, int y0, int y1);
+	}
+	
+	// number of bands of forEach() for the rows [from,to)
+	static int count(ForkJoinPool pool, int from, int to) {
+		if (pool==null || pool.getParallelism()<=1 || to-from<2) return 1;
+		return Math.min(to-from, 4*pool.getParallelism());
+	}
+	
+	// run the body on the rows [from,to) split in bands of rows on the worker pool (null = single thread : one band)
+	static void forEach(ForkJoinPool pool, int from, int to, final Band body) {
+		int bands = count(pool, from, to);
+		if (bands==1) {
+			body.run(0, from, to);
+			return;
+		}
+		final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for(int b=0;b<bands;b++) {
+			final int band = b, y0 = from+b*(to-from)/bands, y1 = from+(b+1)*(to-from)/bands;
+			tasks.add(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					body.run(band, y0, y1);
+				}
+			});
+		}
+		pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+	}
+}
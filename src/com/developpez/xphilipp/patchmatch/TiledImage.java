@@ -0,0 +1,326 @@
+package com.developpez.xphilipp.patchmatch;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Masked RGB image stored in a memory-mapped file, for images too large to fit in memory
+ * 
+ * The image is cut in tiles of TILE x TILE pixels. A tile stores its pixels (packed int 0xRRGGBB)
+ * followed by its mask (1 byte per pixel), and each row of tiles is mapped separately, so the
+ * operating system only pages in the tiles which are used.
+ * 
+ * @see Inpaint#inpaint(TiledImage, TiledImage, int)
+ *
+ */
+public class TiledImage implements PixelSource, Closeable {
+
+	// size of the tiles
+	public static final int TILE = 64;
+	
+	// bytes of a tile : pixels then mask
+	private static final int TILE_PIXELS = TILE*TILE, TILE_BYTES = 5*TILE_PIXELS;
+	
+	// maximum number of strips decoded by read() when it cannot decode in one pass (most readers decode each strip
+	// from the start of the file)
+	private static final int STRIPS = 8;
+	
+	// formats whose readers write through the raster of the destination (others, like BMP, need a standard DataBuffer)
+	private static final String[] DIRECT_FORMATS = {"png", "jpeg"};
+	
+	public final int W,H;
+	private final int tilesX, tilesY;
+	
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	
+	// one mapped buffer per row of tiles
+	private final ByteBuffer[] rows;
+	
+	private TiledImage(File storage, int width, int height) throws IOException {
+		this.W = width;
+		this.H = height;
+		this.tilesX = (W+TILE-1)/TILE;
+		this.tilesY = (H+TILE-1)/TILE;
+		
+		long rowbytes = (long)tilesX*TILE_BYTES;
+		if (rowbytes>Integer.MAX_VALUE) throw new IllegalArgumentException("image too wide : "+W);
+		
+		// truncate first : the old content of the file would be the pixels and the mask
+		this.file = new RandomAccessFile(storage, "rw");
+		this.file.setLength(0);
+		this.file.setLength(rowbytes*tilesY);
+		this.channel = file.getChannel();
+		this.rows = new ByteBuffer[tilesY];
+		for(int ty=0;ty<tilesY;ty++)
+			rows[ty] = channel.map(FileChannel.MapMode.READ_WRITE, rowbytes*ty, rowbytes).order(ByteOrder.nativeOrder());
+	}
+	
+	// create an empty (black, unmasked) image, stored in the given file
+	public static TiledImage create(File storage, int width, int height) throws IOException {
+		return new TiledImage(storage, width, height);
+	}
+	
+	// create an image from an image file (without the mask) : decoded in one pass, straight into the tiles,
+	// when the reader can produce RGB pixels (packed or 3 bytes), otherwise by (a few) strips of rows
+	public static TiledImage read(File imagefile, File storage) throws IOException {
+		ImageInputStream stream = ImageIO.createImageInputStream(imagefile);
+		if (stream==null) throw new IOException("Cannot read image file '"+imagefile+"'");
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext()) throw new IOException("Unsupported image file '"+imagefile+"'");
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(stream);
+				int width = reader.getWidth(0), height = reader.getHeight(0);
+				TiledImage image = new TiledImage(storage, width, height);
+				try {
+					ImageTypeSpecifier type = rgbType(reader);
+					if (type!=null && (long)width*height*samples(type)<=Integer.MAX_VALUE)
+						image.decode(reader, type);
+					else
+						image.decodeStrips(reader);
+				} catch (IOException | RuntimeException e) {
+					image.close();
+					throw e;
+				}
+				return image;
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			stream.close();
+		}
+	}
+	
+	// the RGB type (TYPE_INT_RGB, TYPE_INT_ARGB or TYPE_3BYTE_BGR) the reader can decode to, null if none
+	private static ImageTypeSpecifier rgbType(ImageReader reader) throws IOException {
+		if (!Arrays.asList(DIRECT_FORMATS).contains(reader.getFormatName().toLowerCase())) return null;
+		ImageTypeSpecifier bytes = null;
+		for(Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);types.hasNext();) {
+			ImageTypeSpecifier type = types.next();
+			int t = type.getBufferedImageType();
+			if (t==BufferedImage.TYPE_INT_RGB || t==BufferedImage.TYPE_INT_ARGB) return type;
+			if (t==BufferedImage.TYPE_3BYTE_BGR && bytes==null) bytes = type;
+		}
+		return bytes;
+	}
+	
+	// number of data elements of a pixel
+	private static int samples(ImageTypeSpecifier type) {
+		return (type.getBufferedImageType()==BufferedImage.TYPE_3BYTE_BGR) ? 3 : 1;
+	}
+	
+	// decode the image in a destination whose raster writes into the tiles
+	private void decode(ImageReader reader, ImageTypeSpecifier type) throws IOException {
+		DataBuffer data = (samples(type)==3) ? new BGRPixels() : new Pixels();
+		WritableRaster raster = Raster.createWritableRaster(type.getSampleModel(W, H), data, null);
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setDestination(new BufferedImage(type.getColorModel(), raster, false, null));
+		reader.read(0, param);
+	}
+	
+	// decode the image by strips of rows, at most STRIPS of them
+	private void decodeStrips(ImageReader reader) throws IOException {
+		int strip = Math.max(TILE, (H+STRIPS-1)/STRIPS);
+		int[] rgb = new int[W*strip];
+		for(int y=0;y<H;y+=strip) {
+			int h = Math.min(strip, H-y);
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceRegion(new Rectangle(0, y, W, h));
+			reader.read(0, param).getRGB(0, 0, W, h, rgb, 0, W);
+			setRGB(0, y, W, h, rgb, 0, W);
+		}
+	}
+	
+	// the pixels of the tiles, as the packed RGB data of a BufferedImage (the alpha is dropped)
+	// the readers write the pixels row by row : the row of the last element is kept
+	private class Pixels extends DataBuffer {
+		private final int samples;
+		int y = 0, start = 0;
+		
+		Pixels() {
+			this(DataBuffer.TYPE_INT, 1);
+		}
+		
+		Pixels(int type, int samples) {
+			super(type, W*H*samples);
+			this.samples = samples;
+		}
+		
+		// x of the pixel of the element i, and its row in y
+		int x(int i) {
+			int p = i/samples;
+			if (p<start || p>=start+W) {
+				y = p/W;
+				start = y*W;
+			}
+			return p-start;
+		}
+		
+		@Override
+		public int getElem(int bank, int i) {
+			int x = x(i);
+			return getRGB(x, y);
+		}
+		
+		@Override
+		public void setElem(int bank, int i, int value) {
+			int x = x(i);
+			setRGB(x, y, value);
+		}
+	}
+	
+	// same, as the bytes B,G,R of each pixel (TYPE_3BYTE_BGR)
+	private class BGRPixels extends Pixels {
+		BGRPixels() {
+			super(DataBuffer.TYPE_BYTE, 3);
+		}
+		
+		@Override
+		public int getElem(int bank, int i) {
+			int x = x(i);
+			return (getRGB(x, y)>>(8*(i%3))) & 0xFF;
+		}
+		
+		@Override
+		public void setElem(int bank, int i, int value) {
+			int x = x(i), shift = 8*(i%3);
+			setRGB(x, y, (getRGB(x, y) & ~(0xFF<<shift)) | ((value&0xFF)<<shift));
+		}
+	}
+	
+	// position of the pixel (x,y) in its row of tiles
+	private static int offset(int x, int y) {
+		return (x/TILE)*TILE_BYTES + 4*((y%TILE)*TILE + x%TILE);
+	}
+	
+	private static int maskOffset(int x, int y) {
+		return (x/TILE)*TILE_BYTES + 4*TILE_PIXELS + (y%TILE)*TILE + x%TILE;
+	}
+	
+	public int getRGB(int x, int y) {
+		return rows[y/TILE].getInt(offset(x, y));
+	}
+	
+	public void setRGB(int x, int y, int rgb) {
+		rows[y/TILE].putInt(offset(x, y), rgb & 0xFFFFFF);
+	}
+	
+	public boolean isMasked(int x, int y) {
+		return rows[y/TILE].get(maskOffset(x, y))!=0;
+	}
+	
+	public void setMask(int x, int y, boolean value) {
+		rows[y/TILE].put(maskOffset(x, y), (byte)(value?1:0));
+	}
+	
+	// set the RGB values of a region, like BufferedImage.setRGB()
+	public void setRGB(int x0, int y0, int w, int h, int[] rgb, int offset, int scansize) {
+		for(int y=y0;y<y0+h;y++) {
+			ByteBuffer row = rows[y/TILE];
+			for(int x=x0, i=offset+(y-y0)*scansize;x<x0+w;x++,i++)
+				row.putInt(offset(x, y), rgb[i] & 0xFFFFFF);
+		}
+	}
+	
+	@Override
+	public int getWidth() {
+		return W;
+	}
+	
+	@Override
+	public int getHeight() {
+		return H;
+	}
+	
+	@Override
+	public int getMaskedRGB(int x, int y) {
+		ByteBuffer row = rows[y/TILE];
+		if (row.get(maskOffset(x, y))!=0) return -1;
+		return row.getInt(offset(x, y));
+	}
+	
+	// return a copy of a region, in memory
+	public MaskedImage readRegion(int x0, int y0, int w, int h) {
+		MaskedImage image = new MaskedImage(w, h);
+		for(int y=y0;y<y0+h;y++) {
+			ByteBuffer row = rows[y/TILE];
+			for(int x=x0, i=(y-y0)*w;x<x0+w;x++,i++) {
+				image.pixels[i] = row.getInt(offset(x, y));
+				image.mask[i] = row.get(maskOffset(x, y));
+			}
+		}
+		return image;
+	}
+	
+	// copy an image (in memory) to the region starting at (x0,y0)
+	public void writeRegion(MaskedImage image, int x0, int y0) {
+		for(int y=y0;y<y0+image.H;y++) {
+			ByteBuffer row = rows[y/TILE];
+			for(int x=x0, i=(y-y0)*image.W;x<x0+image.W;x++,i++) {
+				row.putInt(offset(x, y), image.pixels[i]);
+				row.put(maskOffset(x, y), image.mask[i]);
+			}
+		}
+	}
+	
+	// return the bounding box of the masked pixels (null if there is no masked pixel)
+	public Rectangle getMaskedBounds() {
+		int xmin=W, ymin=H, xmax=-1, ymax=-1;
+		for(int y=0;y<H;y++) {
+			ByteBuffer row = rows[y/TILE];
+			for(int x=0;x<W;x++) {
+				if (row.get(maskOffset(x, y))==0) continue;
+				if (x<xmin) xmin=x;
+				if (x>xmax) xmax=x;
+				if (y<ymin) ymin=y;
+				ymax=y;
+			}
+		}
+		if (xmax<0) return null;
+		return new Rectangle(xmin, ymin, xmax-xmin+1, ymax-ymin+1);
+	}
+	
+	// return a downsampled image (factor 1/2), in memory (see MaskedImage.downsample) 
+	// the image is read by strips of rows
+	public MaskedImage downsample() {
+		int newW=W/2, newH=H/2;
+		MaskedImage newimage = new MaskedImage(newW, newH);
+		for(int ny0=0;ny0<newH;ny0+=TILE/2) {
+			int ny1 = Math.min(newH, ny0+TILE/2);
+			
+			// rows used by the kernels of the output rows [ny0,ny1)
+			int y0 = Math.max(0, 2*ny0-2), y1 = Math.min(H, 2*ny1+2);
+			MaskedImage strip = readRegion(0, y0, W, y1-y0);
+			MaskedImage.downsample(strip, y0, H, newimage, 0, newW, ny0, ny1);
+		}
+		return newimage;
+	}
+	
+	// close the file : the mapped buffers are only unmapped when they are garbage collected, until then
+	// they keep their memory and the file (which cannot be deleted on Windows) 
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		file.close();
+	}
+}
@@ -0,0 +1,64 @@
+package com.developpez.xphilipp.patchmatch;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Inpainting of a sequence of frames (video), streamed one frame at a time
+ *
+ * Each frame starts from the solution of the previous one : the masked pixels of the smallest level
+ * and the links of each NNF are taken from the previous frame where they are better than the usual
+ * initial guess. When the frame is coherent with the previous one (small mean difference of the
+ * known pixels), fewer NNF passes and EM iterations are done. A frame whose size or mask levels
+ * differ from the previous one (or after reset()) is inpainted from scratch.
+ *
+ * The Inpaint is dedicated to the sequence : its other settings (threads, region of interest...) apply.
+ *
+ */
+public class VideoInpaint {
+
+	private final Inpaint inpaint;
+	private final int radius;
+
+	// number of frames inpainted, and among them started from the previous frame / with fewer iterations
+	private int frames, warmFrames, coherentFrames;
+
+	public VideoInpaint(Inpaint inpaint, int radius) {
+		this.inpaint = inpaint;
+		this.radius = radius;
+		inpaint.video = true;
+	}
+
+	// inpaint the next frame of the sequence
+	public BufferedImage next(BufferedImage frame, boolean[][] mask) {
+		BufferedImage result = inpaint.inpaint(frame, mask, radius);
+		frames++;
+		if (inpaint.warm) warmFrames++;
+		if (inpaint.coherent) coherentFrames++;
+		return result;
+	}
+
+	// the next frame is inpainted from scratch (cut between two shots)
+	public void reset() {
+		inpaint.clearPrevious();
+	}
+
+	// maximum mean difference of the channels (0-255, at the smallest level) between two coherent frames
+	public void setCoherence(double coherence) {
+		if (coherence<0) throw new IllegalArgumentException("coherence must be >= 0 : "+coherence);
+		inpaint.coherence = coherence;
+	}
+
+	public int getFrameCount() {
+		return frames;
+	}
+
+	// number of frames started from the solution of the previous frame
+	public int getWarmFrameCount() {
+		return warmFrames;
+	}
+
+	// number of frames inpainted with fewer iterations
+	public int getCoherentFrameCount() {
+		return coherentFrames;
+	}
+}
@@ -0,0 +1,51 @@
+package com.developpez.xphilipp.patchmatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import jdk.incubator.vector.IntVector;
+
+/**
+ * The SIMD kernel returns the values of the scalar kernel (vector profile, see pom.xml)
+ * 
+ */
+class DistanceKernelTest {
+
+	static boolean wideVectors() {
+		return IntVector.SPECIES_PREFERRED.vectorBitSize()>=256;
+	}
+	
+	@Test
+	void vectorKernelIsUsedOnlyWithWideVectors() {
+		assumeTrue(Boolean.getBoolean("patchmatch.vector"));
+		assertEquals(wideVectors(), DistanceKernel.INSTANCE instanceof VectorDistanceKernel);
+	}
+	
+	@Test
+	void vectorKernelGivesTheScalarRows() {
+		assumeTrue(wideVectors());
+		DistanceKernel scalar = new DistanceKernel(), vector = new VectorDistanceKernel();
+		Random random = new Random(0);
+		int N = 256;
+		int[] spixels = new int[N], tpixels = new int[N];
+		byte[] smask = new byte[N], tmask = new byte[N];
+		for(int i=0;i<N;i++) {
+			spixels[i] = random.nextInt(0x1000000);
+			tpixels[i] = random.nextInt(0x1000000);
+			smask[i] = (byte)(random.nextInt(10)==0 ? 1 : 0);
+			tmask[i] = (byte)(random.nextInt(10)==0 ? 1 : 0);
+		}
+		// rows shorter than, equal to and longer than a vector, with tails
+		for(int n=0;n<=40;n++) {
+			for(int k=0;k<50;k++) {
+				int is = random.nextInt(N-n+1), it = random.nextInt(N-n+1);
+				assertEquals(scalar.row(spixels, smask, is, tpixels, tmask, it, n), 
+						vector.row(spixels, smask, is, tpixels, tmask, it, n), "n="+n);
+			}
+		}
+	}
+}
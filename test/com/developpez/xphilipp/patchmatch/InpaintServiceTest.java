@@ -0,0 +1,121 @@
+package com.developpez.xphilipp.patchmatch;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The bounded queue of the service : permits of the cancelled jobs, cancellation of a running job
+ * 
+ */
+class InpaintServiceTest {
+
+	static final int W = 80, H = 60, RADIUS = 2;
+	
+	// the jobs on images of this width wait at each NNF pass : until 'release' opens, then 'slow' ms
+	static final int BLOCKED_W = 96;
+	
+	final CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+	volatile long slow = 0;
+	volatile int passes = 0;
+	
+	// one worker, one queued job
+	final InpaintService service = new InpaintService(1, 1) {
+		@Override
+		protected Inpaint createInpaint() {
+			Inpaint inpaint = new Inpaint();
+			inpaint.setListener(new InpaintListener() {
+				// width of the image of the job (the width of level L is width/2^L)
+				int job;
+				
+				@Override
+				public void levelStarted(int level, int width, int height) {
+					job = width<<level;
+					started.countDown();
+				}
+				@Override
+				public void nnfPassCompleted(int level, int pass, long energy, long distances, int active, int improved) {
+					if (job!=BLOCKED_W) return;
+					passes++;
+					try {
+						release.await();
+						Thread.sleep(slow);
+					} catch (InterruptedException e) {
+						// cancel(true) : Inpaint.cancel() stops the job, not the interrupt
+					}
+				}
+			});
+			return inpaint;
+		}
+	};
+	@AfterEach
+	void shutdown() throws InterruptedException {
+		release.countDown();
+		service.shutdown();
+		assertTrue(service.awaitTermination(30, TimeUnit.SECONDS));
+	}
+	
+	private Future<BufferedImage> submit(int width) throws InterruptedException {
+		return service.submit(TestImages.image(width, H), TestImages.mask(width, H, 20, 20, 40, 35), RADIUS);
+	}
+	
+	private Future<BufferedImage> submit(int width, long millis) throws InterruptedException {
+		return service.submit(TestImages.image(width, H), TestImages.mask(width, H, 20, 20, 40, 35), RADIUS, millis, TimeUnit.MILLISECONDS);
+	}
+	
+	@Test
+	void timedSubmitReturnsNullWhileTheServiceIsFull() throws Exception {
+		Future<BufferedImage> running = submit(BLOCKED_W);
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		Future<BufferedImage> queued = submit(W);
+		assertNull(submit(W, 100));
+		
+		release.countDown();
+		assertNotNull(running.get(30, TimeUnit.SECONDS));
+		assertNotNull(queued.get(30, TimeUnit.SECONDS));
+		assertNotNull(submit(W, 100));
+	}
+	
+	@Test
+	void cancellingAQueuedJobReleasesItsPermit() throws Exception {
+		Future<BufferedImage> running = submit(BLOCKED_W);
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		Future<BufferedImage> queued = submit(W);
+		assertTrue(queued.cancel(false));
+		
+		// the running job still holds its permit, the cancelled one does not
+		Future<BufferedImage> next = submit(W, 1000);
+		assertNotNull(next);
+		assertNull(submit(W, 100));
+		
+		release.countDown();
+		assertNotNull(running.get(30, TimeUnit.SECONDS));
+		assertNotNull(next.get(30, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	void cancelStopsARunningJob() throws Exception {
+		// at most one NNF pass per 100 ms
+		slow = 100;
+		release.countDown();
+		Future<BufferedImage> running = submit(BLOCKED_W);
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		assertTrue(running.cancel(true));
+		assertThrows(CancellationException.class, () -> running.get());
+		
+		// the worker is free once the cancelled inpainting stops, at its next NNF pass
+		Future<BufferedImage> next = submit(W);
+		assertNotNull(next.get(5, TimeUnit.SECONDS));
+		assertTrue(passes<=2, "passes of the cancelled job : "+passes);
+	}
+}
@@ -0,0 +1,149 @@
+package com.developpez.xphilipp.patchmatch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The inpainting options which must not change the result
+ * 
+ */
+class InpaintTest {
+
+	static final int W = 160, H = 120, RADIUS = 2;
+	static final int X0 = 40, Y0 = 40, X1 = 80, Y1 = 60;
+	
+	private static int[] inpaint(Inpaint inpaint) {
+		return TestImages.pixels(inpaint.inpaint(TestImages.image(W, H), TestImages.mask(W, H, X0, Y0, X1, Y1), RADIUS));
+	}
+	
+	private static Inpaint inpaint(int threads) {
+		Inpaint inpaint = new Inpaint();
+		inpaint.setThreads(threads);
+		return inpaint;
+	}
+	
+	@Test
+	void sameResultForAnyNumberOfThreads() {
+		assertArrayEquals(inpaint(inpaint(1)), inpaint(inpaint(4)));
+	}
+	
+	@Test
+	void sameResultForAnyNumberOfThreadsWithRegionOfInterestAndActiveSet() {
+		Inpaint single = inpaint(1), parallel = inpaint(4);
+		for(Inpaint inpaint : new Inpaint[] {single, parallel}) {
+			inpaint.setRegionOfInterest(true);
+			inpaint.setActiveSet(true);
+		}
+		assertArrayEquals(inpaint(single), inpaint(parallel));
+	}
+	
+	@Test
+	void sameResultForAnyNumberOfThreadsWithIntegerVotes() {
+		Inpaint single = inpaint(1), parallel = inpaint(4);
+		single.setIntegerVotes(true);
+		parallel.setIntegerVotes(true);
+		assertArrayEquals(inpaint(single), inpaint(parallel));
+	}
+	
+	@Test
+	void regionOfInterestKeepsThePixelsAwayFromTheHole() {
+		Inpaint inpaint = new Inpaint();
+		inpaint.setRegionOfInterest(true);
+		int[] result = inpaint(inpaint), input = TestImages.pixels(TestImages.image(W, H));
+		// the last (upscaled) EM step votes the pixels up to 4*radius from the hole
+		int margin = 4*RADIUS;
+		for(int y=0;y<H;y++)
+			for(int x=0;x<W;x++)
+				if (x<X0-margin || x>=X1+margin || y<Y0-margin || y>=Y1+margin)
+					assertEquals(input[y*W+x], result[y*W+x], "pixel "+x+","+y);
+	}
+	
+	@Test
+	void pyramidCacheGivesTheSameResult() {
+		Inpaint cached = new Inpaint();
+		cached.setPyramidCache(new PyramidCache(16L<<20));
+		BufferedImage image = TestImages.image(W, H);
+		// the second inpainting reuses the pyramid built with another mask
+		cached.inpaint(image, TestImages.mask(W, H, 100, 20, 130, 40), RADIUS);
+		assertArrayEquals(inpaint(new Inpaint()), inpaint(cached));
+	}
+	
+	@Test
+	void incrementalInpaintingWithTheSameMaskGivesTheFreshResult() {
+		Inpaint incremental = new Inpaint();
+		incremental.setIncremental(true);
+		int[] fresh = inpaint(new Inpaint());
+		assertArrayEquals(fresh, inpaint(incremental));
+		// nothing changed since the previous inpainting
+		assertArrayEquals(fresh, inpaint(incremental));
+	}
+	
+	@Test
+	void bufferPoolIsCappedAndDoesNotChangeTheResult() {
+		Inpaint pooled = new Inpaint(), unpooled = new Inpaint();
+		unpooled.setBufferPoolSize(0);
+		assertArrayEquals(inpaint(pooled), inpaint(unpooled));
+		assertEquals(0, unpooled.buffers.getSize());
+		assertTrue(pooled.buffers.getSize()>0);
+		
+		// lowering the cap drops the images above it
+		pooled.setBufferPoolSize(W*H);
+		assertEquals(0, pooled.buffers.getSize());
+	}
+	
+	private static int[] emStep(MaskedImage source, MaskedImage target, NNF nnf, boolean upscaled, boolean integerVotes) {
+		Inpaint inpaint = new Inpaint();
+		inpaint.setIntegerVotes(integerVotes);
+		MaskedImage result = upscaled ? new MaskedImage(2*target.W, 2*target.H) : target.copy();
+		inpaint.EM_Step(source, result, nnf, upscaled, null);
+		return result.pixels;
+	}
+	
+	// the fixed point weights only change the rounding of the vote (the inpaintings then diverge)
+	@Test
+	void integerVotesAreWithinOneLevelOfTheDoubleVotes() {
+		MaskedImage source = new MaskedImage(TestImages.image(W, H), TestImages.mask(W, H, X0, Y0, X1, Y1));
+		MaskedImage sourceUpscaled = new MaskedImage(TestImages.image(2*W, 2*H), TestImages.mask(2*W, 2*H, 2*X0, 2*Y0, 2*X1, 2*Y1));
+		MaskedImage target = new MaskedImage(TestImages.image(W, H), TestImages.mask(W, H, 0, 0, 0, 0));
+		NNF nnf = new NNF(target, source, RADIUS);
+		nnf.randomize();
+		nnf.minimize(2);
+		
+		for(boolean upscaled : new boolean[] {false, true}) {
+			MaskedImage s = upscaled ? sourceUpscaled : source;
+			int[] expected = emStep(s, target, nnf, upscaled, false), actual = emStep(s, target, nnf, upscaled, true);
+			for(int i=0;i<expected.length;i++)
+				for(int shift=0;shift<24;shift+=8)
+					assertTrue(Math.abs(((expected[i]>>shift)&0xFF)-((actual[i]>>shift)&0xFF))<=1, "pixel "+i+(upscaled ? " upscaled" : ""));
+		}
+	}
+	
+	// the original schedule : min(2L,4) EM iterations of min(L,5) NNF passes at the level L
+	@Test
+	void defaultBoundsGiveTheOriginalSchedule() {
+		final List<int[]> levels = new ArrayList<int[]>();
+		Inpaint inpaint = new Inpaint();
+		inpaint.setListener(new InpaintListener() {
+			@Override
+			public void levelCompleted(int level, long nanos, int emIterations, int nnfPasses, MaskedImage result) {
+				levels.add(new int[] {level, emIterations, nnfPasses});
+			}
+		});
+		inpaint(inpaint);
+		
+		// the caps apply from level 3
+		assertTrue(levels.get(0)[0]>=3, "levels : "+levels.size());
+		for(int[] level : levels) {
+			int L = level[0], em = Math.min(2*L, 4);
+			assertEquals(em, level[1], "EM iterations of level "+L);
+			assertEquals(em*Math.min(L, 5), level[2], "NNF passes of level "+L);
+		}
+	}
+}
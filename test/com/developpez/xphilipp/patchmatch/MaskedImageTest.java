@@ -0,0 +1,154 @@
+package com.developpez.xphilipp.patchmatch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Patch distances (the bounded distance, its decompositions by rows and columns) and resampling of the images
+ * 
+ */
+class MaskedImageTest {
+
+	static final int W = 48, H = 40;
+	
+	// patch pairs of a masked source and a target, with centers near and outside the borders
+	private static void forEachPair(int S, PairTest test) {
+		MaskedImage source = new MaskedImage(TestImages.image(W, H), TestImages.mask(W, H, 10, 8, 22, 20));
+		MaskedImage target = new MaskedImage(TestImages.image(H, W), TestImages.mask(H, W, 30, 2, 34, 6));
+		Random random = new Random(S);
+		for(int k=0;k<2000;k++) {
+			int xs = random.nextInt(W+2*S)-S, ys = random.nextInt(H+2*S)-S;
+			int xt = random.nextInt(H+2*S)-S, yt = random.nextInt(W+2*S)-S;
+			test.check(source, xs, ys, target, xt, yt, S);
+		}
+	}
+	
+	private interface PairTest {
+		void check(MaskedImage source, int xs, int ys, MaskedImage target, int xt, int yt, int S);
+	}
+	
+	@Test
+	void distanceIsTheScaledSSD() {
+		for(int S=1;S<=6;S++) {
+			forEachPair(S, (source, xs, ys, target, xt, yt, S1) -> {
+				long ssd = MaskedImage.ssd(source, xs, ys, target, xt, yt, S1, Integer.MAX_VALUE);
+				assertEquals(MaskedImage.scale(ssd, S1), MaskedImage.distance(source, xs, ys, target, xt, yt, S1));
+			});
+		}
+	}
+	
+	@Test
+	void ssdIsTheSumOfTheRowsAndOfTheColumns() {
+		for(int S=1;S<=6;S++) {
+			forEachPair(S, (source, xs, ys, target, xt, yt, S1) -> {
+				long ssd = MaskedImage.ssd(source, xs, ys, target, xt, yt, S1, Integer.MAX_VALUE);
+				long rows=0, columns=0;
+				for(int d=-S1;d<=S1;d++) {
+					rows += MaskedImage.rowSSD(source, xs, ys, target, xt, yt, S1, d);
+					columns += MaskedImage.columnSSD(source, xs, ys, target, xt, yt, S1, d);
+				}
+				assertEquals(ssd, rows);
+				assertEquals(ssd, columns);
+			});
+		}
+	}
+	
+	@Test
+	void boundedDistanceIsExactBelowTheBound() {
+		forEachPair(2, (source, xs, ys, target, xt, yt, S) -> {
+			int exact = MaskedImage.distance(source, xs, ys, target, xt, yt, S);
+			for(int bound : new int[] {1, exact, exact+1, MaskedImage.DSCALE/2}) {
+				int d = MaskedImage.distance(source, xs, ys, target, xt, yt, S, bound);
+				if (exact<bound) assertEquals(exact, d);
+				else assertTrue(d>=bound && d<=exact);
+			}
+		});
+	}
+	
+	@Test
+	void upscale2xGivesTheGeneralBilinearUpscale() {
+		int[] sizes = {1, 2, 3, 7, 16, 33};
+		for(int w : sizes) {
+			for(int h : sizes) {
+				MaskedImage image = new MaskedImage(TestImages.image(w, h), TestImages.mask(w, h, 0, 0, 0, 0));
+				int[] expected = new int[4*w*h];
+				image.bilinear(expected, 2*w, 2*h, 0, 2*h);
+				assertArrayEquals(expected, image.upscale(2*w, 2*h).pixels, w+"x"+h);
+				// by rows (tiled output)
+				int y0 = h/2, y1 = Math.min(2*h, y0+3);
+				assertArrayEquals(Arrays.copyOfRange(expected, y0*2*w, y1*2*w), image.upscaleRows(2*w, 2*h, y0, y1).pixels, w+"x"+h+" rows");
+			}
+		}
+	}
+	
+	// the (non separable) 2D binomial kernel of the original downsample()
+	private static MaskedImage downsample2D(MaskedImage image) {
+		int W=image.W, H=image.H;
+		MaskedImage newimage = new MaskedImage(W/2, H/2);
+		int[] kernelEven = new int[] {1,5,10,10,5,1}; 
+		int[] kernelOdd = new int[] {1,4,6,4,1};
+		int[] kernelx = (W%2==0)?kernelEven:kernelOdd;
+		int[] kernely = (H%2==0)?kernelEven:kernelOdd;
+		
+		for(int ny=0,y=0;ny<newimage.H;y+=2,ny++) {
+			for(int nx=0,x=0;nx<newimage.W;x+=2,nx++) {
+				long r=0,g=0,b=0,ksum=0,masked=0,total=0;
+				for(int dy=0;dy<kernely.length;dy++) {
+					int yk=y+dy-2;
+					if (yk<0 || yk>=H) continue;
+					for(int dx=0;dx<kernelx.length;dx++) {
+						int xk = x+dx-2;
+						if (xk<0 || xk>=W) continue;
+						total++;
+						int i = yk*W+xk;
+						if (image.mask[i]!=0) {masked++;continue;}
+						int k = kernelx[dx]*kernely[dy], p = image.pixels[i];
+						r+= k*((p>>16)&0xFF);
+						g+= k*((p>>8)&0xFF);
+						b+= k*(p&0xFF);
+						ksum+=k;
+					}
+				}
+				int o = ny*newimage.W+nx;
+				if (ksum>0) {
+					int nr = (int)((double)r/ksum+0.5);
+					int ng = (int)((double)g/ksum+0.5);
+					int nb = (int)((double)b/ksum+0.5);
+					newimage.pixels[o] = (nr<<16)|(ng<<8)|nb;
+				}
+				newimage.mask[o] = (byte)((masked>0.75*total)?1:0);
+			}
+		}
+		return newimage;
+	}
+	
+	@Test
+	void separableDownsampleGivesTheTwoDimensionalKernel() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			int[] sizes = {2, 3, 8, 17, 64, 101};
+			for(int w : sizes) {
+				for(int h : sizes) {
+					// a hole and a fully masked band, with borders partly masked
+					boolean[][] mask = TestImages.mask(w, h, w/4, h/4, w/2, h/2);
+					for(int y=0;y<h;y++) mask[w-1][y] = true;
+					MaskedImage image = new MaskedImage(TestImages.image(w, h), mask);
+					MaskedImage expected = downsample2D(image);
+					for(MaskedImage downsampled : new MaskedImage[] {image.downsample(), image.downsample(pool)}) {
+						assertArrayEquals(expected.pixels, downsampled.pixels, w+"x"+h);
+						assertArrayEquals(expected.mask, downsampled.mask, w+"x"+h+" mask");
+					}
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.developpez.xphilipp.patchmatch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * NNF minimization : the parallel passes and the counter-based random numbers, the seeding from a PatchIndex
+ * 
+ */
+class NNFTest {
+
+	static final int W = 120, H = 90, S = 2;
+	
+	private static NNF nnf(ForkJoinPool pool, boolean activeSet, Rectangle roi) {
+		return nnf(pool, activeSet, roi, true);
+	}
+	
+	private static NNF nnf(ForkJoinPool pool, boolean activeSet, Rectangle roi, boolean slidingWindow) {
+		NNF nnf = randomized(pool, activeSet, roi, slidingWindow, S);
+		nnf.minimize(4);
+		return nnf;
+	}
+	
+	private static NNF randomized(ForkJoinPool pool, boolean activeSet, Rectangle roi, boolean slidingWindow, int s) {
+		MaskedImage output = new MaskedImage(TestImages.image(W, H), TestImages.mask(W, H, 30, 30, 60, 50));
+		MaskedImage input = output.copy();
+		NNF nnf = new NNF(input, output, s);
+		nnf.pool = pool;
+		nnf.setSeed(42);
+		nnf.setActiveSet(activeSet);
+		nnf.setRegionOfInterest(roi);
+		nnf.slidingWindow = slidingWindow;
+		nnf.randomize();
+		return nnf;
+	}
+	
+	@Test
+	void parallelPassesGiveTheSequentialField() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			assertArrayEquals(nnf(null, false, null).field, nnf(pool, false, null).field);
+			assertArrayEquals(nnf(null, true, null).field, nnf(pool, true, null).field);
+			Rectangle roi = new Rectangle(20, 15, 60, 50);
+			assertArrayEquals(nnf(null, true, roi).field, nnf(pool, true, roi).field);
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	@Test
+	void slidingDistancesAreTheDistancesOfTheLinks() {
+		final int s = NNF.SLIDING_MIN_S;
+		final NNF nnf = randomized(null, true, null, true, s);
+		final int[] visited = new int[1];
+		nnf.listener = new InpaintListener() {
+			@Override
+			public void nnfPassCompleted(int level, int pass, long energy, long distances, int active, int improved) {
+				assertTrue(nnf.sliding);
+				for (int p=0; p<W*H; p++) {
+					if (nnf.ssd[p]<0) continue;
+					int x = p%W, y = p/W, i = 3*p;
+					int xp = nnf.field[i], yp = nnf.field[i+1];
+					assertEquals(MaskedImage.ssd(nnf.input,x,y, nnf.output,xp,yp, s, Integer.MAX_VALUE), nnf.ssd[p], "ssd of "+x+","+y);
+					assertEquals(nnf.distance(x,y, xp,yp), nnf.field[i+2], "distance of "+x+","+y);
+					visited[0]++;
+				}
+			}
+		};
+		nnf.minimize(4);
+		assertTrue(visited[0]>0);
+		// released once minimize returns
+		assertTrue(nnf.ssd==null && !nnf.sliding);
+		
+		// the sliding update changes the cost of a candidate, not the field
+		for (boolean activeSet : new boolean[] {false, true}) {
+			NNF off = randomized(null, activeSet, null, false, s), on = randomized(null, activeSet, null, true, s);
+			off.minimize(4);
+			on.minimize(4);
+			assertArrayEquals(off.field, on.field);
+		}
+		
+		// no sliding below the minimum radius
+		final NNF small = randomized(null, true, null, true, s-1);
+		small.listener = new InpaintListener() {
+			@Override
+			public void nnfPassCompleted(int level, int pass, long energy, long distances, int active, int improved) {
+				assertTrue(!small.sliding && small.ssd==null);
+			}
+		};
+		small.minimize(1);
+	}
+	
+	@Test
+	void seedingQueriesTheIndexForTheHoleAndLowersTheEnergy() {
+		MaskedImage output = new MaskedImage(TestImages.image(W, H), TestImages.mask(W, H, 30, 30, 60, 50));
+		MaskedImage input = output.copy();
+		Arrays.fill(input.mask, (byte)0);
+		NNF nnf = new NNF(input, output, S);
+		nnf.randomize();
+		long energy = nnf.getEnergy();
+		
+		int seeded = nnf.seedFromIndex(new PatchIndex(output, S));
+		assertTrue(seeded>0, "links seeded : "+seeded);
+		assertTrue(nnf.getEnergy()<energy, "energy "+nnf.getEnergy()+" >= "+energy);
+	}
+}
@@ -0,0 +1,47 @@
+package com.developpez.xphilipp.patchmatch;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Generated (reproducible) images and masks for the tests
+ * 
+ */
+final class TestImages {
+
+	private TestImages() {
+	}
+	
+	// a textured RGB image : gradients, checkerboard and noise
+	static BufferedImage image(int W, int H) {
+		BufferedImage image = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(W*31+H);
+		for(int y=0;y<H;y++) {
+			for(int x=0;x<W;x++) {
+				int checker = ((x/8+y/8)%2)*60;
+				int r = (x*3+checker+random.nextInt(20)) & 0xFF;
+				int g = (y*2+random.nextInt(30)) & 0xFF;
+				int b = ((x^y)+random.nextInt(10)) & 0xFF;
+				image.setRGB(x, y, (r<<16)|(g<<8)|b);
+			}
+		}
+		return image;
+	}
+	
+	// a rectangular hole [x0,x1)x[y0,y1)
+	static boolean[][] mask(int W, int H, int x0, int y0, int x1, int y1) {
+		boolean[][] mask = new boolean[W][H];
+		for(int y=y0;y<y1;y++)
+			for(int x=x0;x<x1;x++)
+				mask[x][y]=true;
+		return mask;
+	}
+	
+	// the RGB values of the pixels, row-major
+	static int[] pixels(BufferedImage image) {
+		int W = image.getWidth(), H = image.getHeight();
+		int[] pixels = image.getRGB(0, 0, W, H, null, 0, W);
+		for(int i=0;i<pixels.length;i++) pixels[i] &= 0xFFFFFF;
+		return pixels;
+	}
+}
@@ -0,0 +1,85 @@
+package com.developpez.xphilipp.patchmatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Out-of-core images : creation, import of image files, tiled inpainting
+ * 
+ */
+class TiledImageTest {
+
+	static final int W = 160, H = 120, RADIUS = 2;
+	
+	@TempDir
+	File tmp;
+	
+	@Test
+	void createDiscardsTheOldContentOfTheFile() throws IOException {
+		File storage = new File(tmp, "storage");
+		try (TiledImage image = TiledImage.create(storage, W, H)) {
+			image.setRGB(5, 5, 0x123456);
+			image.setMask(7, 7, true);
+		}
+		try (TiledImage image = TiledImage.create(storage, W, H)) {
+			assertEquals(0, image.getRGB(5, 5));
+			assertFalse(image.isMasked(7, 7));
+			assertNull(image.getMaskedBounds());
+		}
+	}
+	
+	// the pixels of an image file, read in one pass (PNG, JPEG) or by strips (gray PNG, BMP)
+	@Test
+	void readGivesThePixelsOfTheFile() throws IOException {
+		// taller than the strips of rows
+		BufferedImage rgb = TestImages.image(W, 9*TiledImage.TILE+5);
+		BufferedImage gray = new BufferedImage(rgb.getWidth(), rgb.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+		gray.getGraphics().drawImage(rgb, 0, 0, null);
+		
+		String[][] files = {{"png", "rgb"}, {"jpg", "rgb"}, {"bmp", "rgb"}, {"png", "gray"}};
+		for(String[] file : files) {
+			File imagefile = new File(tmp, file[1]+"."+file[0]);
+			ImageIO.write(file[1].equals("rgb") ? rgb : gray, file[0], imagefile);
+			int[] expected = TestImages.pixels(ImageIO.read(imagefile));
+			try (TiledImage image = TiledImage.read(imagefile, new File(tmp, imagefile.getName()+".tiles"))) {
+				assertEquals(rgb.getWidth(), image.getWidth());
+				assertEquals(rgb.getHeight(), image.getHeight());
+				for(int y=0;y<image.H;y++)
+					for(int x=0;x<image.W;x++)
+						assertEquals(expected[y*image.W+x], image.getRGB(x, y), imagefile.getName()+" pixel "+x+","+y);
+				assertNull(image.getMaskedBounds());
+			}
+		}
+	}
+	
+	@Test
+	void tiledResultEqualsInMemoryResult() throws IOException {
+		BufferedImage image = TestImages.image(W, H);
+		boolean[][] mask = TestImages.mask(W, H, 40, 40, 80, 60);
+		int[] expected = TestImages.pixels(new Inpaint().inpaint(image, mask, RADIUS));
+		
+		try (TiledImage input = TiledImage.create(new File(tmp, "input"), W, H);
+				TiledImage output = TiledImage.create(new File(tmp, "output"), W, H)) {
+			for(int y=0;y<H;y++) {
+				for(int x=0;x<W;x++) {
+					input.setRGB(x, y, image.getRGB(x, y)&0xFFFFFF);
+					input.setMask(x, y, mask[x][y]);
+				}
+			}
+			new Inpaint().inpaint(input, output, RADIUS);
+			for(int y=0;y<H;y++)
+				for(int x=0;x<W;x++)
+					assertEquals(expected[y*W+x], output.getRGB(x, y), "pixel "+x+","+y);
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package com.developpez.xphilipp.patchmatch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Video mode : the frames started from the previous one are still independent of the number of threads
+ * 
+ */
+class VideoInpaintTest {
+
+	static final int W = 120, H = 90, RADIUS = 2, FRAMES = 4;
+	
+	// a panning shot : the frame f is the window of a larger image shifted by f pixels, the hole moves too
+	private static int[][] video(int threads) {
+		BufferedImage scene = TestImages.image(W+FRAMES, H+FRAMES);
+		Inpaint inpaint = new Inpaint();
+		inpaint.setThreads(threads);
+		VideoInpaint video = new VideoInpaint(inpaint, RADIUS);
+		int[][] results = new int[FRAMES][];
+		for(int f=0;f<FRAMES;f++) {
+			BufferedImage frame = scene.getSubimage(f, f, W, H);
+			results[f] = TestImages.pixels(video.next(frame, TestImages.mask(W, H, 40+f, 30, 70+f, 50)));
+		}
+		assertTrue(video.getWarmFrameCount()>0, "no frame started from the previous one");
+		return results;
+	}
+	
+	@Test
+	void sameFramesForAnyNumberOfThreads() {
+		int[][] single = video(1), parallel = video(4);
+		for(int f=0;f<FRAMES;f++)
+			assertArrayEquals(single[f], parallel[f], "frame "+f);
+	}
+}